@@ -0,0 +1,179 @@
+package wifi;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+import rf.RF;
+
+/**
+ * Threaded responder that sends the ACKs the Receiver asks for, so the Receiver never has to wait
+ * for the channel or SIFS itself. ACK frames are built from a template per host so only the
+ * sequence number and CRC have to be filled in.
+ * @author Brandon Roberts
+ * @author Nate Olderman
+ */
+public class AckResponder implements Runnable {
+	private static final int ACK_QUEUE_LIMIT = 16; //the limit to the number of ACKs waiting to be sent
+	private static final int ACK_FRAME_LENGTH = 11; //10 bytes of frame and the 1 byte of data an ACK carries
+	private static final long SLEEP_WAIT = 5; //the amount of time to sleep when it is waiting for something
+
+	private Medium medium;
+	private short ourMac;
+	private LocalClock localClock;
+	private PrintWriter output;
+	private DebugLog debugLog;
+	private FrameCapture frameCapture;
+
+	private ArrayBlockingQueue<Packet> ackQueue; //the packets we owe an ACK for
+	private HashMap<Short, byte[]> ackTemplates; //ACK frame to each host with everything but the seqNum and CRC filled in
+	private CRC32 checksum;
+	private VirtualClock virtualClock; //what every wait goes through in virtual time, null in real time
+	private VirtualClock.Condition ackWaiting; //the virtual time version of taking from the ACK queue
+
+	/**
+	 * Makes a new AckResponder that sends ACKs through the medium
+	 * @param theMedium the medium to send ACKs through
+	 * @param theMac our MAC address
+	 * @param theLocalClock the local clock object
+	 * @param outputWriter the output to write to
+	 */
+	public AckResponder(Medium theMedium, short theMac, LocalClock theLocalClock, PrintWriter outputWriter){
+		medium = theMedium;
+		ourMac = theMac;
+		localClock = theLocalClock;
+		output = outputWriter;
+		debugLog = localClock.getDebugLog();
+		frameCapture = localClock.getFrameCapture();
+
+		ackQueue = new ArrayBlockingQueue<Packet>(ACK_QUEUE_LIMIT);
+		ackTemplates = new HashMap<Short, byte[]>();
+		checksum = new CRC32();
+		virtualClock = localClock.getVirtualClock();
+		ackWaiting = new VirtualClock.Condition(){
+			public boolean isMet(){
+				return !ackQueue.isEmpty();
+			}
+		};
+	}
+
+	/**
+	 * Continually loops forever waiting for a packet to ACK then sending the ACK
+	 */
+	public void run() {
+		while(true){
+			try{
+				transmitACK(nextToACK());
+			} catch(InterruptedException e){
+				localClock.setLastEvent(LocalClock.UNSPECIFIED_ERROR);
+				System.err.println("ACK responder interrupted!");
+			}
+		}
+	}
+
+	/**
+	 * Asks for an ACK to be sent for the given packet, without waiting for it to be sent
+	 * @param packet the packet to ACK
+	 * @return false if too many ACKs are already waiting, in which case the sender will retry and get ACKed then
+	 */
+	public boolean requestACK(Packet packet){
+		boolean queued = ackQueue.offer(packet);
+		if(!queued)
+			debugLog.log(DebugLog.ACK_QUEUE_FULL, packet.getSeqNum(), packet.getSrcAddr());
+		return queued;
+	}
+
+//----------------------------------------------------------------------------------------------------------//
+//---------------------------------------- Sending an ACK --------------------------------------------------//
+//----------------------------------------------------------------------------------------------------------//
+
+	/**
+	 * Builds the ACK for the given packet and sends it once the channel has been idle for SIFS
+	 * @param oldPacket the packet to ACK
+	 */
+	private void transmitACK(Packet oldPacket){
+		byte[] toSend = buildACK(oldPacket.getSrcAddr(), oldPacket.getSeqNum());
+
+		waitForIdleChannelToACK(); 	// checks if channel is idle and then waits SIFS
+		long sentNanos = localClock.nanoTime();
+		medium.transmit(toSend);	// transmit the ACK
+		frameCapture.capture(FrameCapture.SENT, toSend, sentNanos);
+
+		debugLog.log(DebugLog.ACK_SENT, oldPacket.getSeqNum(), oldPacket.getSrcAddr());
+	}
+
+	/**
+	 * Waits for a packet that needs an ACK
+	 * @return the packet to ACK
+	 * @throws InterruptedException if interrupted while waiting in real time
+	 */
+	private Packet nextToACK() throws InterruptedException{
+		if(virtualClock == null)
+			return ackQueue.take();
+
+		virtualClock.await(ackWaiting);
+		return ackQueue.poll(); //nothing else takes from the queue
+	}
+
+	/**
+	 * Fills in a copy of the ACK template for the host with the sequence number and CRC
+	 * @param destAddr the host the ACK goes to
+	 * @param seqNum the sequence number being ACKed
+	 * @return the ACK frame
+	 */
+	private byte[] buildACK(short destAddr, short seqNum){
+		byte[] template = ackTemplates.get(destAddr);
+		if(template == null){
+			template = (new Packet((short)1, (short)0, destAddr, ourMac, new byte[1])).toBytes();
+			ackTemplates.put(destAddr, template);
+		}
+
+		byte[] ack = template.clone(); //the RF layer gets its own copy
+		ack[0] = (byte) ((ack[0] & 0xF0) | (seqNum >>> 8 & 0xF));
+		ack[1] = (byte) (seqNum & 0xFF);
+
+		checksum.reset();
+		checksum.update(ack, 0, ACK_FRAME_LENGTH - 4);
+		int checksumVal = (int)(checksum.getValue() & 0xFFFFFFFF);
+
+		ack[ACK_FRAME_LENGTH-4] = (byte) (checksumVal >>> 24);
+		ack[ACK_FRAME_LENGTH-3] = (byte) (checksumVal >>> 16);
+		ack[ACK_FRAME_LENGTH-2] = (byte) (checksumVal >>> 8);
+		ack[ACK_FRAME_LENGTH-1] = (byte) (checksumVal & 0xFF);
+		return ack;
+	}
+
+	/**
+	 * Waits for the the channel to be idle for SIFS in order to send an ACK
+	 */
+	private void waitForIdleChannelToACK(){
+		do{
+			debugLog.log(DebugLog.ACK_WAIT_IDLE_CHANNEL);
+
+			while(medium.inUse()){
+				try{
+					localClock.sleep(SLEEP_WAIT);
+				}catch(InterruptedException e){
+					localClock.setLastEvent(LocalClock.UNSPECIFIED_ERROR);
+					System.err.println("ACK responder interrupted!");
+				}
+			}
+
+			waitSIFS(); //Only wait SIFS when idle because we are sending an ACK
+		} while(medium.inUse()); //if channel is in use wait for it to be idle for an ack
+	}
+
+	/**
+	 * Waits SIFS time
+	 */
+	private void waitSIFS(){
+		debugLog.log(DebugLog.ACK_WAIT_SIFS);
+
+		try {
+			localClock.sleep(RF.aSIFSTime);
+		} catch (InterruptedException e) {
+			System.err.println("Receiver failed waiting SIFS");
+		}
+	}
+}
@@ -0,0 +1,316 @@
+package wifi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free ring of bytes for handing the link layer's text output to the GUI. There is one writer
+ * and one reader at a time: several threads may write as long as something serializes them, as the
+ * PrintWriter wrapped around {@link #getOutputStream()} does. The writer only writes the tail and the reader
+ * only writes the head, and the two are padded onto separate cache lines so they don't slow each other down.
+ * The memory used never grows; when the reader falls behind, writes are either dropped and counted or wait.
+ * A reader with nothing to do can park in {@link #awaitData(long)} and the next write wakes it.
+ * @author Brandon Roberts
+ * @author Nate Olderman
+ */
+public class ByteRing {
+	/**
+	 * Throw away a write that doesn't fit and count its bytes
+	 */
+	public static final int DROP = 0;
+
+	/**
+	 * Wait for the reader to make room for a write that doesn't fit
+	 */
+	public static final int BLOCK = 1;
+
+	private final byte[] buffer;
+	private final int mask;
+	private final int policy;
+
+	private long p1, p2, p3, p4, p5, p6, p7; 		//keeps head off the cache line of whatever is before it
+	private volatile long head; 					//next byte to read, only written by the reader
+	private long cachedTail; 						//the reader's last look at tail, so it doesn't read it every time
+	private long p8, p9, p10, p11, p12, p13; 		//keeps head and tail on different cache lines
+	private volatile long tail; 					//next byte to write, only written by the writer
+	private long cachedHead; 						//the writer's last look at head
+	private long droppedBytes; 						//only written by the writer
+	private long blockedCount; 						//writes that had to wait, only written by the writer
+	private long p14, p15, p16, p17, p18, p19; 		//keeps tail off the cache line of whatever is after it
+	private volatile Thread waitingReader; 			//the reader while it is parked in awaitData, otherwise null
+
+	/**
+	 * Makes a new empty ring
+	 * @param capacity the number of bytes it holds, rounded up to a power of two
+	 * @param thePolicy DROP or BLOCK
+	 */
+	public ByteRing(int capacity, int thePolicy){
+		int size = 1;
+		while(size < capacity)
+			size <<= 1;
+		buffer = new byte[size];
+		mask = size - 1;
+		policy = thePolicy;
+	}
+
+	/**
+	 * Writes bytes to the ring, applying the overflow policy if there isn't room for all of them.
+	 * A write is never split by DROP, so the reader never sees part of a line.
+	 * @param bytes the bytes to write
+	 * @param offset where in bytes to start
+	 * @param length how many bytes to write
+	 * @return the number of bytes written
+	 */
+	public int write(byte[] bytes, int offset, int length){
+		if(length > buffer.length && policy == DROP){
+			droppedBytes += length; //could never fit
+			return 0;
+		}
+
+		int written = 0;
+		int idleCount = 0;
+		while(written < length){
+			long currentTail = tail;
+			int free = freeSpace(currentTail, length - written);
+
+			if(free < length - written && (policy == DROP || free == 0)){
+				if(policy == DROP){
+					droppedBytes += length;
+					return 0;
+				}
+				if(idleCount == 0)
+					blockedCount++;
+				idleCount = SpscQueue.idle(idleCount);
+				continue;
+			}
+
+			int chunk = Math.min(free, length - written);
+			copyIn(bytes, offset + written, currentTail, chunk);
+			tail = currentTail + chunk; //publishes the bytes to the reader
+			written += chunk;
+
+			Thread reader = waitingReader;
+			if(reader != null)
+				LockSupport.unpark(reader);
+		}
+		return written;
+	}
+
+	/**
+	 * Waits without spinning until there are bytes to read, for the reader to call when it has nothing to do.
+	 * The reader announces itself before checking the ring one last time, so a write that lands as it parks
+	 * still wakes it.
+	 * @param timeoutMillis the longest to wait, or 0 to wait until there are bytes
+	 * @return true if there are bytes to read, false if it timed out or was interrupted first
+	 */
+	public boolean awaitData(long timeoutMillis){
+		if(tail != head)
+			return true;
+
+		long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+		waitingReader = Thread.currentThread();
+		try{
+			while(tail == head){
+				if(timeoutMillis > 0){
+					long remaining = deadline - System.nanoTime();
+					if(remaining <= 0)
+						return false;
+					LockSupport.parkNanos(this, remaining);
+				}
+				else
+					LockSupport.park(this);
+
+				if(Thread.currentThread().isInterrupted())
+					return tail != head;
+			}
+			return true;
+		} finally{
+			waitingReader = null;
+		}
+	}
+
+	/**
+	 * Reads as many bytes as are waiting, up to a limit, without waiting for more
+	 * @param bytes where to put the bytes
+	 * @param offset where in bytes to start
+	 * @param length the most bytes to read
+	 * @return the number of bytes read, 0 if the ring was empty
+	 */
+	public int read(byte[] bytes, int offset, int length){
+		long currentHead = head;
+		if(cachedTail - currentHead < length)
+			cachedTail = tail;
+
+		int count = (int)Math.min(cachedTail - currentHead, length);
+		if(count <= 0)
+			return 0;
+
+		int start = (int)currentHead & mask;
+		int firstChunk = Math.min(count, buffer.length - start);
+		System.arraycopy(buffer, start, bytes, offset, firstChunk);
+		System.arraycopy(buffer, 0, bytes, offset + firstChunk, count - firstChunk);
+
+		head = currentHead + count; //gives the space back to the writer
+		return count;
+	}
+
+	/**
+	 * Reads whole lines that are waiting, up to a limit, without waiting for more. If more is waiting than
+	 * fits, it stops after the last newline that fits so no line is split between reads, unless not even one
+	 * whole line fits.
+	 * @param bytes where to put the bytes
+	 * @param offset where in bytes to start
+	 * @param length the most bytes to read
+	 * @return the number of bytes read, 0 if the ring was empty
+	 */
+	public int readLines(byte[] bytes, int offset, int length){
+		long currentHead = head;
+		cachedTail = tail;
+
+		int waiting = (int)(cachedTail - currentHead);
+		int count = Math.min(waiting, length);
+		if(count <= 0)
+			return 0;
+
+		int start = (int)currentHead & mask;
+		int firstChunk = Math.min(count, buffer.length - start);
+		System.arraycopy(buffer, start, bytes, offset, firstChunk);
+		System.arraycopy(buffer, 0, bytes, offset + firstChunk, count - firstChunk);
+
+		if(waiting > length){ //cut at the last line break so the rest of the line stays for next time
+			int end = offset + count - 1;
+			while(end >= offset && bytes[end] != '\n')
+				end--;
+			if(end >= offset)
+				count = end - offset + 1;
+		}
+
+		head = currentHead + count; //gives the space back to the writer
+		return count;
+	}
+
+	/**
+	 * Gets the number of bytes waiting to be read
+	 * @return the number of bytes in the ring
+	 */
+	public int available(){
+		return (int)(tail - head);
+	}
+
+	/**
+	 * Gets the number of bytes the ring holds
+	 * @return the capacity
+	 */
+	public int getCapacity(){
+		return buffer.length;
+	}
+
+	/**
+	 * Gets the number of bytes thrown away because there wasn't room
+	 * @return the dropped byte count
+	 */
+	public long getDroppedBytes(){
+		return droppedBytes;
+	}
+
+	/**
+	 * Gets the number of writes that had to wait for room
+	 * @return the blocked count
+	 */
+	public long getBlockedCount(){
+		return blockedCount;
+	}
+
+	/**
+	 * Describes the ring for display
+	 * @return the counters as a string
+	 */
+	public String toString(){
+		return "Waiting: " + available() + " of " + buffer.length + " bytes | Policy: " + (policy == DROP ? "drop" : "block") +
+				" | Dropped: " + droppedBytes + " bytes | Blocked: " + blockedCount;
+	}
+
+	/**
+	 * Gets a stream that writes to the ring, only to be written by one thread at a time
+	 * @return the output stream
+	 */
+	public OutputStream getOutputStream(){
+		return new OutputStream(){
+			private final byte[] single = new byte[1];
+
+			public void write(int b){
+				single[0] = (byte)b;
+				ByteRing.this.write(single, 0, 1);
+			}
+
+			public void write(byte[] bytes, int offset, int length){
+				ByteRing.this.write(bytes, offset, length);
+			}
+		};
+	}
+
+	/**
+	 * Gets a stream that reads from the ring, only to be read by one thread at a time.
+	 * Its reads wait for at least one byte, but available() tells how many can be read without waiting.
+	 * @return the input stream
+	 */
+	public InputStream getInputStream(){
+		return new InputStream(){
+			private final byte[] single = new byte[1];
+
+			public int read(){
+				return (read(single, 0, 1) == 1) ? (single[0] & 0xFF) : -1;
+			}
+
+			public int read(byte[] bytes, int offset, int length){
+				if(length == 0)
+					return 0;
+
+				int count;
+				while((count = ByteRing.this.read(bytes, offset, length)) == 0)
+					awaitData(0);
+				return count;
+			}
+
+			public int available() throws IOException{
+				return ByteRing.this.available();
+			}
+		};
+	}
+
+
+//----------------------------------------------------------------------------------------------------------//
+//---------------------------------------- Helper Methods --------------------------------------------------//
+//----------------------------------------------------------------------------------------------------------//
+
+	/**
+	 * Gets the room left for the writer, only looking at head again if the last look wasn't enough
+	 * @param currentTail the writer's tail
+	 * @param needed the number of bytes the writer wants to write
+	 * @return the number of bytes that can be written
+	 */
+	private int freeSpace(long currentTail, int needed){
+		int free = buffer.length - (int)(currentTail - cachedHead);
+		if(free < needed){
+			cachedHead = head;
+			free = buffer.length - (int)(currentTail - cachedHead);
+		}
+		return free;
+	}
+
+	/**
+	 * Copies bytes into the ring starting at a position, wrapping around the end
+	 * @param bytes the bytes to copy
+	 * @param offset where in bytes to start
+	 * @param position the ring position to copy to
+	 * @param length how many bytes to copy
+	 */
+	private void copyIn(byte[] bytes, int offset, long position, int length){
+		int start = (int)position & mask;
+		int firstChunk = Math.min(length, buffer.length - start);
+		System.arraycopy(bytes, offset, buffer, start, firstChunk);
+		System.arraycopy(bytes, offset + firstChunk, buffer, 0, length - firstChunk);
+	}
+}
@@ -0,0 +1,357 @@
+package wifi;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Structured debug output for the hot paths. Each log call checks its category's level, then writes a fixed
+ * size record of numbers into a preallocated ring without building a string or taking a lock. A background
+ * thread turns the records into text and prints them, so debug costs the MAC threads a few stores per event.
+ * If the ring fills up faster than it can be printed, new records are dropped and counted instead of waiting.
+ * @author Brandon Roberts
+ * @author Nate Olderman
+ */
+public class DebugLog implements Runnable {
+	//--categories--//
+	public static final int SENDER = 0; 	//transmit states and outcomes
+	public static final int RECEIVER = 1; 	//received frames, gaps and drops
+	public static final int ACK = 2; 		//ACKs sent and matched
+	public static final int LINK = 3; 		//calls from the layer above
+	private static final String[] CATEGORY_NAMES = {"Sender", "Receiver", "ACK", "Link"};
+
+	//--levels--//
+	public static final int OFF = 0;
+	public static final int INFO = 1; 		//outcomes: delivered, failed, timed out, dropped
+	public static final int TRACE = 2; 		//every state transition
+
+	//--events, each one indexes the tables below--//
+	public static final int WAIT_DIFS_BACKOFF = 0;
+	public static final int WAIT_SLOT = 1;
+	public static final int WAIT_DIFS = 2;
+	public static final int WAIT_IDLE_CHANNEL = 3;
+	public static final int TRANSMITTED = 4;
+	public static final int TX_DELIVERED = 5;
+	public static final int TX_FAILED = 6;
+	public static final int ACK_TIMEOUT = 7;
+	public static final int ENCODED_AHEAD = 8;
+	public static final int CORRUPT_FRAME = 9;
+	public static final int WITHHELD_ACK = 10;
+	public static final int RECEIVE_DROPPED = 11;
+	public static final int LATE_ACK = 12;
+	public static final int DUPLICATE_ACK = 13;
+	public static final int ACK_QUEUE_FULL = 14;
+	public static final int ACK_SENT = 15;
+	public static final int ACK_WAIT_IDLE_CHANNEL = 16;
+	public static final int ACK_WAIT_SIFS = 17;
+	public static final int SEND_QUEUED = 18;
+	public static final int RECEIVED = 19;
+	public static final int RECEIVED_BATCH = 20;
+
+	private static final int[] EVENT_CATEGORY = {
+		SENDER, SENDER, SENDER, SENDER, SENDER, SENDER, SENDER, SENDER, SENDER,
+		RECEIVER, RECEIVER, RECEIVER,
+		ACK, ACK, ACK, ACK, ACK, ACK,
+		LINK, LINK, LINK};
+	private static final int[] EVENT_LEVEL = {
+		TRACE, TRACE, TRACE, TRACE, TRACE, INFO, INFO, INFO, TRACE,
+		INFO, INFO, INFO,
+		INFO, INFO, INFO, TRACE, TRACE, TRACE,
+		TRACE, TRACE, TRACE};
+	private static final String[] EVENT_FORMAT = { //each {} is filled with the next argument
+		"Waiting DIFS and backing off",
+		"Waiting slot time, {} slots left",
+		"Waiting DIFS",
+		"Waiting for idle channel",
+		"Transmitted Sequence Number: {} to: {} ({} bytes)",
+		"TX DELIVERED Sequence Number: {} to: {}",
+		"TX FAILED Sequence Number: {} to: {}, setting its next sequence number to 0",
+		"Timed out waiting for ACK of Sequence Number: {}, collision window: {}, backoff count: {}",
+		"Encoded frame ahead of sending, Sequence Number: {}",
+		"CORRUPTED PACKET RECEIVED",
+		"INSUFFICIENT BUFFER SPACE: withholding ACK of Sequence Number: {} from: {}",
+		"INSUFFICIENT BUFFER SPACE: dropped Sequence Number: {} from: {}",
+		"Late ACK of Sequence Number: {} from: {}",
+		"Duplicate ACK of Sequence Number: {} from: {}",
+		"ACK queue full, not ACKing Sequence Number: {} from: {}",
+		"Transmitted ACK of Sequence Number: {} to: {}",
+		"Waiting for idle channel to ACK",
+		"Waiting SIFS to ACK",
+		"Attempting to send Sequence Number: {} to: {} ({} bytes), slot count: {}, collision window: {}",
+		"Received Sequence Number: {} from: {} ({} bytes)",
+		"Received batch of {} packets"};
+
+	private static final int RECORD_WIDTH = 7; 			//time, event, and up to five arguments
+	private static final int DEFAULT_CAPACITY = 4096; 	//records the ring holds
+	private static final int SPIN_LIMIT = 200; 			//empty polls before the printing thread goes to sleep
+
+	private LocalClock localClock;
+	private AtomicIntegerArray levels; 	//the level of each category
+
+	private long[] records; 			//RECORD_WIDTH longs per record
+	private AtomicLongArray published; 	//the sequence of the record in each slot once it is completely written
+	private int mask;
+
+	private AtomicLong claimed; 		//the sequence the next record gets
+	private volatile long printed; 		//the sequence of the next record to print, only written by the printing thread
+	private AtomicLong droppedCount; 	//records that didn't fit in the ring
+
+	private volatile Thread printer; 	//null until it is started
+	private volatile boolean sleeping; 	//whether the printing thread is parked waiting for a record
+
+	private PrintWriter output;
+
+	/**
+	 * Makes a new DebugLog with every category off, which only prints once it is started
+	 * @param theLocalClock the clock records are timestamped with
+	 */
+	public DebugLog(LocalClock theLocalClock){
+		localClock = theLocalClock;
+		levels = new AtomicIntegerArray(CATEGORY_NAMES.length);
+
+		records = new long[DEFAULT_CAPACITY * RECORD_WIDTH];
+		published = new AtomicLongArray(DEFAULT_CAPACITY);
+		for(int i = 0; i < DEFAULT_CAPACITY; i++)
+			published.set(i, -1);
+		mask = DEFAULT_CAPACITY - 1;
+
+		claimed = new AtomicLong();
+		droppedCount = new AtomicLong();
+	}
+
+	/**
+	 * Starts the thread that prints the records
+	 * @param theOutput the printwriter to print to
+	 */
+	public void start(PrintWriter theOutput){
+		output = theOutput;
+		Thread thread = new Thread(this, "Debug log");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY); //never compete with the MAC threads
+		printer = thread;
+		thread.start();
+	}
+
+	/**
+	 * Continually loops forever printing records in the order they were claimed
+	 */
+	public void run(){
+		long lastDropped = 0;
+		int idleCount = 0;
+		while(true){
+			long sequence = printed;
+			int slot = (int)sequence & mask;
+
+			if(published.get(slot) != sequence){ //nothing new yet
+				if(idleCount++ < SPIN_LIMIT){
+					Thread.yield();
+					continue;
+				}
+				sleeping = true;
+				if(published.get(slot) != sequence) //check again so a record published as we went to sleep isn't missed
+					LockSupport.park(this);
+				sleeping = false;
+				idleCount = 0;
+				continue;
+			}
+
+			long dropped = droppedCount.get();
+			if(dropped != lastDropped){
+				output.println("[" + (dropped - lastDropped) + " debug records dropped]");
+				lastDropped = dropped;
+			}
+
+			output.println(format(slot * RECORD_WIDTH));
+			printed = sequence + 1; //gives the slot back to the loggers
+			idleCount = 0;
+		}
+	}
+
+	/**
+	 * Checks whether an event would be logged, to skip gathering its arguments
+	 * @param event the event
+	 * @return true if its category is at or above its level
+	 */
+	public boolean isEnabled(int event){
+		return levels.get(EVENT_CATEGORY[event]) >= EVENT_LEVEL[event];
+	}
+
+	/**
+	 * Logs an event with no arguments
+	 * @param event the event
+	 */
+	public void log(int event){
+		log(event, 0, 0, 0, 0, 0);
+	}
+
+	/**
+	 * Logs an event with one argument
+	 * @param event the event
+	 * @param a the first argument
+	 */
+	public void log(int event, long a){
+		log(event, a, 0, 0, 0, 0);
+	}
+
+	/**
+	 * Logs an event with two arguments
+	 * @param event the event
+	 * @param a the first argument
+	 * @param b the second argument
+	 */
+	public void log(int event, long a, long b){
+		log(event, a, b, 0, 0, 0);
+	}
+
+	/**
+	 * Logs an event with three arguments
+	 * @param event the event
+	 * @param a the first argument
+	 * @param b the second argument
+	 * @param c the third argument
+	 */
+	public void log(int event, long a, long b, long c){
+		log(event, a, b, c, 0, 0);
+	}
+
+	/**
+	 * Logs an event with up to five arguments, unused ones are ignored
+	 * @param event the event
+	 * @param a the first argument
+	 * @param b the second argument
+	 * @param c the third argument
+	 * @param d the fourth argument
+	 * @param e the fifth argument
+	 */
+	public void log(int event, long a, long b, long c, long d, long e){
+		if(!isEnabled(event))
+			return;
+
+		long sequence;
+		do{
+			sequence = claimed.get();
+			if(sequence - printed >= published.length()){ //the printing thread is a whole ring behind
+				droppedCount.incrementAndGet();
+				return;
+			}
+		} while(!claimed.compareAndSet(sequence, sequence + 1));
+
+		int slot = (int)sequence & mask;
+		int base = slot * RECORD_WIDTH;
+		records[base] = localClock.getLocalTime();
+		records[base + 1] = event;
+		records[base + 2] = a;
+		records[base + 3] = b;
+		records[base + 4] = c;
+		records[base + 5] = d;
+		records[base + 6] = e;
+		published.set(slot, sequence); //volatile write makes the record visible to the printing thread
+
+		Thread thread = printer;
+		if(sleeping && thread != null)
+			LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Checks whether any category has output on
+	 * @return true if any category is above OFF
+	 */
+	public boolean anyEnabled(){
+		for(int i = 0; i < levels.length(); i++){
+			if(levels.get(i) > OFF)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the level of a category
+	 * @param category the category
+	 * @return OFF, INFO or TRACE
+	 */
+	public int getLevel(int category){
+		return levels.get(category);
+	}
+
+	/**
+	 * Sets the level of a category
+	 * @param category SENDER, RECEIVER, ACK or LINK
+	 * @param level OFF, INFO or TRACE
+	 * @return false if the category or level isn't one of those
+	 */
+	public boolean setLevel(int category, int level){
+		if(category < 0 || category >= CATEGORY_NAMES.length || level < OFF || level > TRACE)
+			return false;
+		levels.set(category, level);
+		return true;
+	}
+
+	/**
+	 * Sets every category to the same level
+	 * @param level OFF, INFO or TRACE
+	 */
+	public void setAllLevels(int level){
+		for(int i = 0; i < levels.length(); i++)
+			levels.set(i, level);
+	}
+
+	/**
+	 * Gets the number of records dropped because the ring was full
+	 * @return the dropped count
+	 */
+	public long getDroppedCount(){
+		return droppedCount.get();
+	}
+
+	/**
+	 * Describes the level of every category for display
+	 * @return the levels as a string
+	 */
+	public String toString(){
+		String description = "";
+		for(int i = 0; i < CATEGORY_NAMES.length; i++)
+			description += i + " " + CATEGORY_NAMES[i] + ": " + levelName(levels.get(i)) + " | ";
+		return description + "Dropped: " + droppedCount.get();
+	}
+
+
+//----------------------------------------------------------------------------------------------------------//
+//---------------------------------------- Helper Methods --------------------------------------------------//
+//----------------------------------------------------------------------------------------------------------//
+
+	/**
+	 * Turns a record into a line of text
+	 * @param base the index of the record in the ring
+	 * @return the formatted record
+	 */
+	private String format(int base){
+		int event = (int)records[base + 1];
+		String template = EVENT_FORMAT[event];
+
+		StringBuilder line = new StringBuilder(template.length() + 48);
+		line.append(records[base]).append(' ').append(CATEGORY_NAMES[EVENT_CATEGORY[event]]).append(": ");
+
+		int argument = base + 2;
+		int start = 0;
+		int hole;
+		while((hole = template.indexOf("{}", start)) >= 0){
+			line.append(template, start, hole).append(records[argument++]);
+			start = hole + 2;
+		}
+		return line.append(template, start, template.length()).toString();
+	}
+
+	/**
+	 * Gets the name of a level
+	 * @param level the level
+	 * @return the name of the level
+	 */
+	private static String levelName(int level){
+		switch(level){
+			case OFF: return "off";
+			case INFO: return "info";
+			case TRACE: return "trace";
+			default: return "unknown";
+		}
+	}
+}
@@ -0,0 +1,397 @@
+package wifi;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Binary record of every frame sent and received, for finding out afterwards what actually went over the air.
+ * Frames are appended to a memory mapped work file in pcap format with nanosecond timestamps, so a capture
+ * costs a lock and a copy into memory instead of formatting text, and the operating system writes it out.
+ * There are two work files. When the one being written fills up, capture switches to the other, and a
+ * background thread copies the records in the full one out to a pcap file of exactly their length with the
+ * next number in its name, then starts it over, so no MAC thread ever waits on the copy. If the writer is
+ * still copying when the second one fills up too, frames are dropped and counted until it is done. Once there
+ * are more finished files than allowed the oldest is deleted.
+ * <p>
+ * The work files stay the same size and mapped until capture stops, since Java can't unmap a file and some
+ * systems won't shorten or delete one while it is mapped. They end in ".part" so nothing looking for
+ * ".pcap" files reads the unused space at their ends as records.
+ * <p>
+ * The files use the user defined link type (147), and every record is one direction byte, RECEIVED or SENT,
+ * followed by the frame exactly as it went to or came from the RF layer. When capture is off, a capture call
+ * costs one volatile read.
+ * @author Brandon Roberts
+ * @author Nate Olderman
+ */
+public class FrameCapture {
+	/**
+	 * Direction byte of a frame that came from the RF layer
+	 */
+	public static final int RECEIVED = 0;
+
+	/**
+	 * Direction byte of a frame that went to the RF layer
+	 */
+	public static final int SENT = 1;
+
+	private static final int PCAP_NANO_MAGIC = 0xA1B23C4D; 	//pcap magic number for nanosecond timestamps
+	private static final int LINKTYPE_USER0 = 147; 			//the first link type set aside for private use
+	private static final int SNAP_LENGTH = 65535;
+	private static final int FILE_HEADER_LENGTH = 24;
+	private static final int RECORD_HEADER_LENGTH = 16; 		//seconds, nanoseconds, captured length, original length
+	private static final long NANOS_PER_SECOND = 1000000000L;
+
+	private LocalClock localClock;
+
+	private volatile MappedByteBuffer segment; 	//the records of the work file being written, null when capture is off
+	private MappedByteBuffer[] workBuffers; 	//both work files' records
+	private RandomAccessFile[] workFiles;
+	private File[] workPaths;
+	private int active; 						//index of the work file being written
+
+	private MappedByteBuffer finishing; 		//a full work file waiting for the writer, null when there isn't one
+	private int finishingCount; 				//the number of the finished file it is copied out to
+	private boolean writing; 					//whether the writer has a work file it hasn't started over yet
+	private Thread writer; 						//copies full work files out, null until capture is first started
+
+	private File directory;
+	private String prefix; 						//the start of every file's name
+	private int segmentBytes; 					//size of each work file, and the most any finished file holds
+	private int maxFiles; 						//finished files kept before the oldest is deleted
+	private int fileCount; 						//files finished since capture was started
+
+	private long epochNanos; 					//wall clock time when capture started, in nanoseconds
+	private long startNanos; 					//the local clock's nanoTime() when capture started
+
+	private long capturedFrames;
+	private long capturedBytes;
+	private long droppedFrames; 				//frames that couldn't be written
+
+	private Thread shutdownHook; 				//finishes the current file if the program exits while capturing
+
+	/**
+	 * Makes a new FrameCapture that is off until it is started
+	 * @param theLocalClock the local clock that errors are reported to and times come from
+	 */
+	public FrameCapture(LocalClock theLocalClock){
+		localClock = theLocalClock;
+	}
+
+	/**
+	 * Starts capturing into a new set of files, finishing any capture already going
+	 * @param theDirectory the directory to put the files in
+	 * @param thePrefix the start of every file's name, which is followed by the file number and ".pcap"
+	 * @param theSegmentBytes the size of each work file, and the most any finished file holds
+	 * @param theMaxFiles the number of finished files kept before the oldest is deleted
+	 * @throws IOException if the work files can't be made
+	 */
+	public synchronized void start(File theDirectory, String thePrefix, int theSegmentBytes, int theMaxFiles) throws IOException{
+		if(theSegmentBytes < FILE_HEADER_LENGTH + RECORD_HEADER_LENGTH + 1 || theMaxFiles < 1)
+			throw new IllegalArgumentException("Capture files must hold a record and there must be at least one");
+		stop();
+
+		directory = theDirectory;
+		prefix = thePrefix;
+		segmentBytes = theSegmentBytes;
+		maxFiles = theMaxFiles;
+		fileCount = 0;
+		capturedFrames = 0;
+		capturedBytes = 0;
+		droppedFrames = 0;
+
+		epochNanos = System.currentTimeMillis() * 1000000L;
+		startNanos = localClock.nanoTime(); //virtual time when the layer runs in it
+
+		openWorkFiles();
+
+		if(writer == null){
+			writer = new Thread(new Runnable(){
+				public void run(){
+					writeSegments();
+				}
+			}, "Frame capture writer");
+			writer.setDaemon(true);
+			writer.start();
+		}
+
+		if(shutdownHook == null){
+			shutdownHook = new Thread(new Runnable(){
+				public void run(){
+					stop();
+				}
+			}, "Frame capture shutdown");
+			Runtime.getRuntime().addShutdownHook(shutdownHook);
+		}
+	}
+
+	/**
+	 * Stops capturing, and waits for the records in the work files to be copied out to the last finished files
+	 */
+	public synchronized void stop(){
+		waitForWriter();
+		if(segment == null) //never started, or the writer had to stop it
+			return;
+
+		finishing = segment;
+		finishingCount = fileCount++;
+		segment = null; //capture is off from here, so nothing new waits on the lock while it is copied
+		notifyAll();
+
+		waitForWriter();
+		closeWorkFiles();
+	}
+
+	/**
+	 * Checks whether frames are being captured
+	 * @return true if capture is on
+	 */
+	public boolean isCapturing(){
+		return segment != null;
+	}
+
+	/**
+	 * Captures a frame if capture is on
+	 * @param direction RECEIVED or SENT
+	 * @param frame the frame as it went to or came from the RF layer
+	 * @param nanos the local clock's nanoTime() when it was sent or received
+	 */
+	public void capture(int direction, byte[] frame, long nanos){
+		if(segment == null || frame == null)
+			return;
+
+		synchronized(this){
+			MappedByteBuffer buffer = segment;
+			if(buffer == null) //stopped while we waited for the lock
+				return;
+
+			int length = Math.min(frame.length + 1, SNAP_LENGTH);
+			if(buffer.remaining() < RECORD_HEADER_LENGTH + length){
+				if(RECORD_HEADER_LENGTH + length > segmentBytes - FILE_HEADER_LENGTH || !rotate()){
+					droppedFrames++;
+					return;
+				}
+				buffer = segment;
+			}
+
+			long time = epochNanos + (nanos - startNanos);
+			buffer.putInt((int)(time / NANOS_PER_SECOND));
+			buffer.putInt((int)(time % NANOS_PER_SECOND));
+			buffer.putInt(length);
+			buffer.putInt(frame.length + 1);
+			buffer.put((byte)direction);
+			buffer.put(frame, 0, length - 1);
+
+			capturedFrames++;
+			capturedBytes += frame.length;
+		}
+	}
+
+	/**
+	 * Gets the number of frames captured since capture was started
+	 * @return the captured frame count
+	 */
+	public synchronized long getCapturedFrames(){
+		return capturedFrames;
+	}
+
+	/**
+	 * Gets the number of frames that couldn't be written since capture was started
+	 * @return the dropped frame count
+	 */
+	public synchronized long getDroppedFrames(){
+		return droppedFrames;
+	}
+
+	/**
+	 * Describes the capture for display
+	 * @return the capture's state and counters as a string
+	 */
+	public synchronized String toString(){
+		if(segment == null)
+			return "Off | Captured: " + capturedFrames + " frames";
+		return "Writing " + segmentName(fileCount) + " (" + segment.position() + " of " + segmentBytes + " bytes, " +
+				maxFiles + " files kept) | Captured: " + capturedFrames + " frames, " + capturedBytes + " bytes | Dropped: " + droppedFrames;
+	}
+
+
+//----------------------------------------------------------------------------------------------------------//
+//---------------------------------------- Helper Methods --------------------------------------------------//
+//----------------------------------------------------------------------------------------------------------//
+
+	/**
+	 * Hands the full work file to the writer and switches to the other one, unless the writer is still copying
+	 * the other one out
+	 * @return false if the other work file isn't ready yet
+	 */
+	private boolean rotate(){
+		if(finishing != null || writing)
+			return false;
+
+		finishing = segment;
+		finishingCount = fileCount++;
+		active = 1 - active;
+		segment = workBuffers[active]; //already started over by the writer
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Waits until the writer has started every work file handed to it over
+	 */
+	private void waitForWriter(){
+		try{
+			while(finishing != null || writing)
+				wait();
+		} catch(InterruptedException e){
+			System.err.println("Frame capture stopped without waiting for the last file to be written");
+		}
+	}
+
+	/**
+	 * Continually loops forever copying each full work file out to its finished file and starting it over. It
+	 * stops capture if the records couldn't be written.
+	 */
+	private void writeSegments(){
+		while(true){
+			MappedByteBuffer full;
+			int count;
+			synchronized(this){
+				try{
+					while(finishing == null)
+						wait();
+				} catch(InterruptedException e){
+					continue;
+				}
+				full = finishing;
+				count = finishingCount;
+				finishing = null;
+				writing = true;
+			}
+
+			boolean written = finishSegment(full, count); //without the lock, so capture goes on into the other one
+			startSegment(full);
+
+			synchronized(this){
+				writing = false;
+				if(!written && segment != null)
+					closeWorkFiles();
+				notifyAll(); //wake stop if it is waiting for this one
+			}
+		}
+	}
+
+	/**
+	 * Makes and maps both work files, and writes the first pcap file header in each. The work files get names of
+	 * their own every time, so nothing ever has to shorten a file that might still be mapped from an earlier capture.
+	 * @throws IOException if a file can't be made or mapped
+	 */
+	private void openWorkFiles() throws IOException{
+		MappedByteBuffer[] buffers = new MappedByteBuffer[2];
+		RandomAccessFile[] files = new RandomAccessFile[2];
+		File[] paths = new File[2];
+		try{
+			for(int i = 0; i < 2; i++){
+				paths[i] = File.createTempFile(prefix + "-", ".part", directory);
+				files[i] = new RandomAccessFile(paths[i], "rw");
+				buffers[i] = files[i].getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+				buffers[i].order(ByteOrder.LITTLE_ENDIAN);
+				startSegment(buffers[i]);
+			}
+		} catch(IOException e){
+			for(int i = 0; i < 2; i++){
+				if(files[i] != null)
+					files[i].close();
+				if(paths[i] != null)
+					paths[i].delete();
+			}
+			throw e;
+		}
+
+		workBuffers = buffers;
+		workFiles = files;
+		workPaths = paths;
+		active = 0;
+		segment = buffers[0];
+	}
+
+	/**
+	 * Starts a work file over with a pcap file header
+	 * @param buffer the work file's records
+	 */
+	private void startSegment(MappedByteBuffer buffer){
+		buffer.clear();
+		buffer.putInt(PCAP_NANO_MAGIC);
+		buffer.putShort((short)2); //version 2.4
+		buffer.putShort((short)4);
+		buffer.putInt(0); //timestamps are already UTC
+		buffer.putInt(0); //accuracy of the timestamps
+		buffer.putInt(SNAP_LENGTH);
+		buffer.putInt(LINKTYPE_USER0);
+	}
+
+	/**
+	 * Copies the header and records in a full work file out to a finished file, then deletes the oldest
+	 * finished file if there are more than maxFiles
+	 * @param full the work file's records
+	 * @param count the number of files finished before this one
+	 * @return false if the finished file couldn't be written
+	 */
+	private boolean finishSegment(MappedByteBuffer full, int count){
+		File finished = new File(directory, segmentName(count));
+		ByteBuffer records = full.duplicate();
+		records.flip(); //just what was written
+
+		try{
+			FileOutputStream out = new FileOutputStream(finished);
+			try{
+				FileChannel channel = out.getChannel();
+				while(records.hasRemaining())
+					channel.write(records);
+			} finally{
+				out.close();
+			}
+		} catch(IOException e){
+			localClock.setLastEvent(LocalClock.UNSPECIFIED_ERROR);
+			System.err.println("Frame capture stopped, couldn't write " + finished + ": " + e.getMessage());
+			return false;
+		}
+
+		if(count >= maxFiles)
+			new File(directory, segmentName(count - maxFiles)).delete();
+		return true;
+	}
+
+	/**
+	 * Stops writing to the work files and deletes them. Where the system won't delete a file that is still mapped,
+	 * it is deleted when the program exits instead.
+	 */
+	private void closeWorkFiles(){
+		segment = null;
+		for(int i = 0; i < 2; i++){
+			try{
+				workFiles[i].close();
+			} catch(IOException e){
+				localClock.setLastEvent(LocalClock.UNSPECIFIED_ERROR);
+				System.err.println("Couldn't close capture work file: " + e.getMessage());
+			}
+			if(!workPaths[i].delete())
+				workPaths[i].deleteOnExit();
+		}
+		workBuffers = null;
+	}
+
+	/**
+	 * Gets the name of a finished file
+	 * @param count the number of files finished before this one
+	 * @return the file name
+	 */
+	private String segmentName(int count){
+		return prefix + "-" + count + ".pcap";
+	}
+}
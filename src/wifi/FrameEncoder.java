@@ -0,0 +1,54 @@
+package wifi;
+
+import java.util.concurrent.*;
+
+/**
+ * Threaded encode stage that serializes and checksums queued packets ahead of the Sender
+ * so the Sender only has to hand a finished frame to the RF layer
+ * @author Brandon Roberts
+ * @author Nate Olderman
+ */
+public class FrameEncoder implements Runnable {
+	private LinkedBlockingQueue<Packet> encodeQueue; //packets waiting to be encoded
+	private LocalClock localClock;
+	private DebugLog debugLog;
+
+	/**
+	 * Makes a new FrameEncoder that encodes packets as they are queued
+	 * @param theLocalClock the local clock object
+	 */
+	public FrameEncoder(LocalClock theLocalClock){
+		localClock = theLocalClock;
+		debugLog = localClock.getDebugLog();
+		encodeQueue = new LinkedBlockingQueue<Packet>();
+	}
+
+	/**
+	 * Continually loops forever waiting for a packet then encoding it
+	 */
+	public void run() {
+		while(true){
+			try{
+				Packet packet = encodeQueue.take();
+
+				//the sender may have already needed it and encoded it inline
+				if(!packet.isEncoded()){
+					packet.getFrameBytes();
+
+					debugLog.log(DebugLog.ENCODED_AHEAD, packet.getSeqNum());
+				}
+			} catch(InterruptedException e){
+				localClock.setLastEvent(LocalClock.UNSPECIFIED_ERROR);
+				System.err.println("Frame encoder interrupted!");
+			}
+		}
+	}
+
+	/**
+	 * Queues a packet to be encoded before the Sender gets to it
+	 * @param packet the packet to encode
+	 */
+	public void encode(Packet packet){
+		encodeQueue.offer(packet);
+	}
+}
@@ -0,0 +1,14 @@
+package wifi;
+
+/**
+ * Callback for frames delivered to a {@link Subscription} on the {@link LinkLayer}
+ * @author Brandon Roberts
+ * @author Nate Olderman
+ */
+public interface FrameListener {
+	/**
+	 * Called on the Receiver thread for every frame matching the subscription, so it should return quickly
+	 * @param t the source address, destination address and data of the frame
+	 */
+	void frameReceived(Transmission t);
+}
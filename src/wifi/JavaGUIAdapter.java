@@ -1,9 +1,7 @@
 package wifi;
 
-import java.io.BufferedReader;
-import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.util.Arrays;
 
 /**
  * This class acts as a thin layer between the GUI client code and the Java-based
@@ -15,9 +13,12 @@ import java.io.PrintWriter;
  */
 
 public class JavaGUIAdapter implements GUIClientInterface {
-   private static Dot11Interface theDot11Layer;
-   private static CircularByteBuffer cbb;
-   private static BufferedReader reader;
+   private static LinkLayer theDot11Layer;
+   private static final int MAX_BATCH = 32;   // Most transmissions handed up per watchForIncomingBatch() call
+   private static final int OUTPUT_RING_SIZE = 1 << 18;   // Bytes of output held for the GUI before new output is dropped
+   private static final int MAX_POLL_BYTES = 1 << 16;     // Most bytes of output handed to the GUI per pollForStreamOutput() call
+   private static ByteRing outputRing;
+   private static final byte[] pollBuffer = new byte[MAX_POLL_BYTES];   // Reused by every poll
    
    /**
     * An array of addresses to use for the "send" buttons in the GUI.
@@ -30,9 +31,9 @@ public class JavaGUIAdapter implements GUIClientInterface {
 
    /**
     * Create an instance of the 802.11~ layer.  It wraps a PrintWriter around a
-    * BufferedReader that's wrapped around a CircularByteBuffer (whew!) so that
-    * we can read the text that the 802.11~ layer writes to the stream and 
-    * display it in the GUI's window.
+    * bounded ByteRing so that we can read the text that the 802.11~ layer writes to the stream and 
+    * display it in the GUI's window.  If the GUI falls behind, output that
+    * doesn't fit in the ring is dropped and counted instead of growing it.
     * 
     * @param MACaddr  The MAC address passed to the 802.11~ constructor.
     * @return Returns 0 on success, -1 if an error occurs.
@@ -40,9 +41,8 @@ public class JavaGUIAdapter implements GUIClientInterface {
    public int initializeLinkLayer(short MACaddr) {
       
       try {
-         cbb = new CircularByteBuffer(CircularByteBuffer.INFINITE_SIZE);
-         reader = new BufferedReader(new InputStreamReader(cbb.getInputStream()));
-         theDot11Layer = new LinkLayer(MACaddr, new PrintWriter(cbb.getOutputStream(), true));
+         outputRing = new ByteRing(OUTPUT_RING_SIZE, ByteRing.DROP);
+         theDot11Layer = new LinkLayer(MACaddr, new PrintWriter(outputRing.getOutputStream(), true));
       } catch (Exception e) {
          // TODO Auto-generated catch block
          return -1;
@@ -85,6 +85,33 @@ public class JavaGUIAdapter implements GUIClientInterface {
        */
    }
 
+   /**
+    * Batched version of watchForIncomingData().  Blocks until data arrives, then
+    * returns every transmission that is ready (up to MAX_BATCH) in one call, each
+    * built the same way as the array returned by watchForIncomingData().
+    * @return An array of byte arrays, each holding a MAC address and data
+    */
+   public byte[][] watchForIncomingBatch() {
+      Transmission[] batch = new Transmission[MAX_BATCH];
+      for (int i = 0; i < MAX_BATCH; i++)
+         batch[i] = new Transmission((short)0, (short)0, null);
+
+      int count = theDot11Layer.recvBatch(batch, MAX_BATCH, -1);
+      if (count < 0)
+         count = 0;
+
+      byte[][] result = new byte[count][];
+      for (int i = 0; i < count; i++) {
+         byte[] buf = batch[i].getBuf();
+         byte[] data = new byte[buf.length + 2];
+         data[0] = (byte) ((batch[i].getSourceAddr() >>> 8) & 0xFF);
+         data[1] = (byte) (batch[i].getSourceAddr() & 0xFF);
+         System.arraycopy(buf, 0, data, 2, buf.length);
+         result[i] = data;
+      }
+      return result;
+   }
+
    /**
     * Wrapper around the 802.11~ layer's send routine.
     * @param dest  The destination MAC address
@@ -98,22 +125,43 @@ public class JavaGUIAdapter implements GUIClientInterface {
    
    /**
     * This routine pulls text from the stream to which the 802.11~ layer is writing
-    * and returns any new text as an array of bytes.
+    * and returns any new text as an array of bytes.  The bytes are copied straight
+    * out of the output ring, at most MAX_POLL_BYTES per call and ending on a line
+    * break, so a burst of output is handed over in pieces instead of stalling the GUI.
     * @return An array of bytes representing characters sent to output stream since last call.
     */
    public byte[] pollForStreamOutput() {
-      String msg = "";
-      try {
-         while (reader.ready())
-            msg += reader.readLine() + "\n";
-      } catch (IOException e) {
-         // TODO Auto-generated catch block
-         e.printStackTrace();
-      }
-      return msg.getBytes();
+      if (outputRing == null)
+         return new byte[0];
+
+      int count = outputRing.readLines(pollBuffer, 0, MAX_POLL_BYTES);
+      return Arrays.copyOf(pollBuffer, count);
    }
    
    
+   /**
+    * Blocking version of pollForStreamOutput().  Waits until the 802.11~ layer has
+    * written something, woken by the write itself rather than by polling, then returns
+    * it the same way pollForStreamOutput() does.
+    * @return An array of bytes representing characters sent to output stream since last call.
+    */
+   public byte[] watchForStreamOutput() {
+      if (outputRing == null)
+         return new byte[0];
+
+      outputRing.awaitData(0);
+      return pollForStreamOutput();
+   }
+   
+   
+   /**
+    * Gets the ring the 802.11~ layer's output goes through, for its dropped byte count.
+    * @return The output ring, or null before the layer is initialized.
+    */
+   public ByteRing getOutputRing() {
+      return outputRing;
+   }
+
    /**
     * The GUI calls this when the user asks to pass command info to the 802.11~ layer.
     * @param command  Specifies the command to send
@@ -1,8 +1,8 @@
 package wifi;
 
-import rf.RF;
-
 import java.util.concurrent.*;
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.*;
 
@@ -18,16 +18,26 @@ public class LinkLayer implements Dot11Interface {
 	private static final int SEQ_NUM_LIMIT = (1 << 12); //the sequence numbers should never hit 2^12
 	private static final short MAX_DATA_LENGTH = 2038; //the specified max number of bytes of data able to be sent
 	private static final int BUFFER_SIZE_LIMIT = 4; //the limit to the size of the buffer
+	private static final int CAPTURE_FILES = 8; //capture files kept before the oldest is deleted
+	private static final int DECODE_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)); //threads decoding received frames in parallel
 
-	private RF theRF;
+	private Medium medium;										//the channel frames are sent and received on
 	private short ourMAC; 										//Our MAC address
 	private PrintWriter output; 								//The output stream we'll write to
 
 	private ConcurrentLinkedDeque<Packet> senderBuf; 			//the buffer for sending packets
-	private ArrayBlockingQueue<Packet> receiverBuf; 			//the buffer for receiving packets
+	private ReceiveBuffer receiverBuf; 							//the buffer for receiving packets
 	
 	private HashMap<Short, Integer> sendSeqNums;				//seqNums for what we send out. key is destinationAddr, value is seqNum
 	private LocalClock localClock;
+	private FrameEncoder frameEncoder;							//encodes packets before the sender gets to them
+	private ReceiveDispatcher dispatcher;						//subscribers that receive packets instead of recv
+	private OutstandingFrames outstandingFrames;				//frames sent and waiting on an ACK
+	private CopyOnWriteArrayList<ReadinessListener> readinessListeners; //told whenever a packet is ready to be received
+	private ReceivePipeline receivePipeline;					//reads, decodes and dispatches received frames on separate threads, null in virtual time
+	private TimingWheel timingWheel;							//runs ACK timeouts, beacon intervals and backoff deadlines
+	private Sender sender;
+	private Receiver receiver;
 	
 	/**
 	 * Constructor takes a MAC address and the PrintWriter to which our output will
@@ -36,24 +46,92 @@ public class LinkLayer implements Dot11Interface {
 	 * @param output Output stream associated with GUI
 	 */
 	public LinkLayer(short ourMAC, PrintWriter output){
+		this(ourMAC, output, new RFMedium(output));
+	}
+
+	/**
+	 * Constructor takes a MAC address, the PrintWriter to which our output will
+	 * be written, and the medium to send and receive on instead of the RF layer.
+	 * @param ourMAC MAC address
+	 * @param output Output stream associated with GUI
+	 * @param theMedium the medium to use
+	 */
+	public LinkLayer(short ourMAC, PrintWriter output, Medium theMedium){
+		this(ourMAC, output, theMedium, null);
+	}
+
+	/**
+	 * Constructor takes a MAC address, the PrintWriter to which our output will be written, the medium
+	 * to send and receive on, and the virtual clock to run every MAC timer and wait on. In virtual time
+	 * the Sender, Receiver and ACK responder are participants of the clock, received frames are decoded
+	 * on the Receiver's thread instead of the receive pipeline, and the random backoff is seeded by the
+	 * clock, so the layer has to be driven from {@link VirtualClock#run(long)}. Receiving waits on the clock
+	 * too, so the recv methods, and recv on a queued subscription, can only be called from a participant
+	 * thread made with {@link VirtualClock#newThread(Runnable, String)}. Anything else gets an IllegalStateException.
+	 * @param ourMAC MAC address
+	 * @param output Output stream associated with GUI
+	 * @param theMedium the medium to use, which has to run on the same virtual clock
+	 * @param theVirtualClock the virtual clock, or null for real time
+	 */
+	public LinkLayer(short ourMAC, PrintWriter output, Medium theMedium, VirtualClock theVirtualClock){
 		this.ourMAC = ourMAC;
 		this.output = output;
 
-		theRF = new RF(output, null);
-		localClock = new LocalClock(theRF);
+		medium = theMedium;
+		if(theVirtualClock != null){
+			timingWheel = new TimingWheel(theVirtualClock);
+			localClock = new LocalClock(medium, timingWheel, theVirtualClock, theVirtualClock.newRandom());
+		}
+		else{
+			timingWheel = new TimingWheel();
+			localClock = new LocalClock(medium, timingWheel);
+		}
 		senderBuf = new ConcurrentLinkedDeque<Packet>();
-		receiverBuf = new ArrayBlockingQueue<Packet>(BUFFER_SIZE_LIMIT);
+		receiverBuf = new ReceiveBuffer(BUFFER_SIZE_LIMIT, theVirtualClock);
+		readinessListeners = new CopyOnWriteArrayList<ReadinessListener>();
+		receiverBuf.setReadyHook(new Runnable(){
+			public void run(){
+				for(ReadinessListener listener : readinessListeners)
+					listener.receiveReady(LinkLayer.this);
+			}
+		});
 		sendSeqNums = new HashMap<Short, Integer>();
+		frameEncoder = new FrameEncoder(localClock);
+		dispatcher = new ReceiveDispatcher();
+		outstandingFrames = new OutstandingFrames();
 		
-		//--initialize and start sender and receiver threads--//
-		Thread sender = new Thread(new Sender(theRF, senderBuf, ourMAC, localClock, output, sendSeqNums));
-		Thread receiver = new Thread(new Receiver(theRF, senderBuf, receiverBuf, ourMAC, localClock, output));
-		sender.start();
-		receiver.start();
+		//--initialize and start sender, receive pipeline, ACK responder and encoder threads--//
+		Thread encoder = new Thread(frameEncoder);
+		sender = new Sender(medium, senderBuf, ourMAC, localClock, output, sendSeqNums, outstandingFrames);
+		AckResponder ackResponder = new AckResponder(medium, ourMAC, localClock, output);
+		receiver = new Receiver(medium, receiverBuf, ourMAC, localClock, output, ackResponder, dispatcher, outstandingFrames);
+		Thread senderThread;
+		Thread responder;
+		Thread receiverThread = null;
+		if(theVirtualClock != null){ //made in the same order every time so the clock hands out turns the same way
+			senderThread = theVirtualClock.newThread(sender, "Sender " + ourMAC);
+			responder = theVirtualClock.newThread(ackResponder, "ACK responder " + ourMAC);
+			receiverThread = theVirtualClock.newThread(receiver, "Receiver " + ourMAC);
+		}
+		else{
+			senderThread = new Thread(sender);
+			responder = new Thread(ackResponder);
+			responder.setPriority(Thread.MAX_PRIORITY); //ACKs have to go out within SIFS
+			receivePipeline = new ReceivePipeline(medium, receiver, DECODE_THREADS, localClock.getFrameCapture());
+		}
+		timingWheel.start();
+		localClock.getDebugLog().start(output);
+		encoder.start();
+		responder.start();
+		senderThread.start();
+		if(receivePipeline != null)
+			receivePipeline.start();
+		else
+			receiverThread.start();
 		
 		//--set any status codes that may have occurred, no debug is printed because user cannot turn on debug until after this--//
 		localClock.setLastEvent(LocalClock.SUCCESS); //Initial value of 802_init is successful
-		if(theRF == null)
+		if(medium == null)
 			localClock.setLastEvent(LocalClock.RF_INIT_FAILED); //Attempt to initialize RF layer failed
 		if(ourMAC > MAX_MAC || ourMAC < -1)
 			localClock.setLastEvent(LocalClock.BAD_MAC_ADDRESS); //Illegal MAC address was specified
@@ -102,15 +180,13 @@ public class LinkLayer implements Dot11Interface {
 		//create the packet
 		Packet packet = new Packet((short)0, getNextSeqNum(dest), dest, ourMAC, data);
 		
-		//print out if debug is on
-		if(debugOn){
-			output.println("Attempting to send packet: " + packet.toString() + " At Time: " + (localClock.getLocalTime()));
-			output.println("Slot Count: " + localClock.getBackoffCount() + " Collision Window: " + localClock.getCollisionWindow());
-		}
+		localClock.getDebugLog().log(DebugLog.SEND_QUEUED, packet.getSeqNum(), dest, len, localClock.getBackoffCount(), localClock.getCollisionWindow());
 
 		output.println("LinkLayer: Queueing packet of " + len + " bytes to " + dest);
 		
 		senderBuf.addLast(packet);//put the packet on the sender buffer
+		sender.wakeUp();
+		frameEncoder.encode(packet);//get it encoded while the sender is busy with whatever is ahead of it
 		return len;
 	}
 	
@@ -121,6 +197,26 @@ public class LinkLayer implements Dot11Interface {
 	 * @return the number of bytes received, -1 if receive failed
 	 */
 	public int recv(Transmission t) {
+		return recv(t, -1);
+	}
+
+	/**
+	 * Receives data if there is some waiting, without blocking
+	 * @param t the transmission to fill with the data received
+	 * @return the number of bytes received, -1 if nothing was waiting or receive failed
+	 */
+	public int tryRecv(Transmission t) {
+		return recv(t, 0);
+	}
+
+	/**
+	 * Recv method that blocks until data arrives or the timeout passes, then writes it an address info into
+	 * the Transmission object
+	 * @param t the transmission to fill with the data received
+	 * @param timeout how long to wait in milliseconds, 0 to not wait, -1 to wait forever
+	 * @return the number of bytes received, -1 if nothing arrived in time or receive failed
+	 */
+	public int recv(Transmission t, long timeout) {
 		if(t == null){
 			localClock.setLastEvent(LocalClock.ILLEGAL_ARGUMENT);//One or more arguments are invalid
 			if(localClock.getDebugOn())
@@ -130,10 +226,11 @@ public class LinkLayer implements Dot11Interface {
 		
 		Packet packet;
 		try{
-			packet = receiverBuf.take(); //receive the packet
+			packet = (timeout < 0) ? receiverBuf.take() : receiverBuf.poll(timeout); //receive the packet
+			if(packet == null) //nothing arrived in time, which isn't an error
+				return -1;
 
-			if(localClock.getDebugOn())
-				output.println("Received packet: " + packet.toString() + " At Time: " +  (localClock.getLocalTime()));
+			localClock.getDebugLog().log(DebugLog.RECEIVED, packet.getSeqNum(), packet.getSrcAddr(), packet.getDataBuf().length);
 			
 			return prepareForLayerAbove(t, packet);
 		} 
@@ -145,7 +242,232 @@ public class LinkLayer implements Dot11Interface {
 		
 		return -1;
 	}
+
+	/**
+	 * Gets the number of packets waiting to be received
+	 * @return the number of packets recv would return without blocking
+	 */
+	public int available() {
+		return receiverBuf.size();
+	}
+
+	/**
+	 * Registers a listener that is told every time a packet is ready to be received, so one thread can
+	 * wait on several link layers (see {@link LinkSelector})
+	 * @param listener the listener to call on the receiving thread
+	 */
+	public void addReadinessListener(ReadinessListener listener) {
+		readinessListeners.add(listener);
+	}
+
+	/**
+	 * Stops telling a listener when packets are ready
+	 * @param listener the listener to remove
+	 */
+	public void removeReadinessListener(ReadinessListener listener) {
+		readinessListeners.remove(listener);
+	}
+
+	/**
+	 * Batched version of recv that waits for data to arrive, then writes every packet that is ready
+	 * (up to max) into the given Transmissions, so a burst of packets costs one wakeup
+	 * @param out the transmissions to fill with the data received, in the order it was received
+	 * @param max the most packets to receive, no more than out.length
+	 * @param timeout how long to wait for the first packet in milliseconds, 0 to not wait, -1 to wait forever
+	 * @return the number of transmissions filled (0 if nothing arrived in time), -1 if receive failed
+	 */
+	public int recvBatch(Transmission[] out, int max, long timeout){
+		if(out == null || max < 1 || max > out.length){
+			localClock.setLastEvent(LocalClock.ILLEGAL_ARGUMENT);//One or more arguments are invalid
+			if(localClock.getDebugOn())
+				output.println("ILLEGAL ARGUMENT");
+			return -1;
+		}
+
+		try{
+			Packet first = (timeout < 0) ? receiverBuf.take() : receiverBuf.poll(timeout);
+			if(first == null)
+				return 0;
+
+			ArrayList<Packet> packets = new ArrayList<Packet>(max);
+			packets.add(first);
+			receiverBuf.drainTo(packets, max - 1); //everything else that is already waiting
+
+			for(int i = 0; i < packets.size(); i++){
+				if(out[i] == null){
+					localClock.setLastEvent(LocalClock.BAD_ADDRESS);//Pointer to a buffer or address was NULL
+					out[i] = new Transmission((short)0, (short)0, null);
+				}
+				prepareForLayerAbove(out[i], packets.get(i));
+			}
+
+			localClock.getDebugLog().log(DebugLog.RECEIVED_BATCH, packets.size());
+
+			return packets.size();
+		}
+		catch(InterruptedException e){
+			localClock.setLastEvent(LocalClock.UNSPECIFIED_ERROR);//would get here if receive failed, make status an unspecified error
+			if(localClock.getDebugOn())
+				output.println("RECEIVE FAILED");
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Registers a listener that is called with every received frame matching the filter. Matching
+	 * frames no longer go to {@link #recv(Transmission)}.
+	 * @param srcAddr the source address to receive from, or Subscription.ANY_SOURCE
+	 * @param frameType the frame type to receive (0 for data, 2 for beacons), or Subscription.ANY_TYPE for data
+	 * @param listener the listener to call on the receiving thread
+	 * @return the subscription, used to unsubscribe
+	 */
+	public Subscription subscribe(int srcAddr, int frameType, FrameListener listener){
+		Subscription subscription = new Subscription(srcAddr, frameType, ourMAC, listener);
+		dispatcher.subscribe(subscription);
+		return subscription;
+	}
+
+	/**
+	 * Registers a queue of its own for every received frame matching the filter, taken with
+	 * {@link Subscription#recv(Transmission)}. Matching frames no longer go to {@link #recv(Transmission)}.
+	 * @param srcAddr the source address to receive from, or Subscription.ANY_SOURCE
+	 * @param frameType the frame type to receive (0 for data, 2 for beacons), or Subscription.ANY_TYPE for data
+	 * @param queueSize how many frames can wait before new ones are dropped
+	 * @return the subscription, used to receive and to unsubscribe
+	 */
+	public Subscription subscribe(int srcAddr, int frameType, int queueSize){
+		if(queueSize < 1){
+			localClock.setLastEvent(LocalClock.BAD_BUF_SIZE);
+			if(localClock.getDebugOn())
+				output.println("BAD BUFFER SIZE");
+			return null;
+		}
+
+		Subscription subscription = new Subscription(srcAddr, frameType, ourMAC, queueSize, localClock.getVirtualClock());
+		dispatcher.subscribe(subscription);
+		return subscription;
+	}
+
+	/**
+	 * Stops delivering frames to a subscription, so they go back to {@link #recv(Transmission)}
+	 * @param subscription the subscription to remove
+	 * @return true if it was subscribed
+	 */
+	public boolean unsubscribe(Subscription subscription){
+		return dispatcher.unsubscribe(subscription);
+	}
+	
+	/**
+	 * Gets the receive buffer feeding {@link #recv(Transmission)}, for its overflow counters and high water mark
+	 * @return the receive buffer
+	 */
+	public ReceiveBuffer getReceiveBuffer(){
+		return receiverBuf;
+	}
+	
+	/**
+	 * Describes how well our clock is synced with every peer we have heard beacons from
+	 * @return the sync report, one line per peer
+	 */
+	public String getClockSyncReport(){
+		return localClock.getSyncReport();
+	}
+
+	/**
+	 * Gets the receive pipeline, for its per stage latency and queue depth metrics
+	 * @return the receive pipeline, or null in virtual time where the Receiver decodes frames itself
+	 */
+	public ReceivePipeline getReceivePipeline(){
+		return receivePipeline;
+	}
+
+	/**
+	 * Gets the receiver, for setting the sequence numbers it expects from a stream picked up part way through
+	 * @return the receiver
+	 */
+	public Receiver getReceiver(){
+		return receiver;
+	}
+
+	/**
+	 * Gets the index of frames waiting on an ACK, for its matched, duplicate and late ACK counters
+	 * @return the outstanding frames
+	 */
+	public OutstandingFrames getOutstandingFrames(){
+		return outstandingFrames;
+	}
 	
+	/**
+	 * Sets how much debug output one category gives
+	 * @param category DebugLog.SENDER, RECEIVER, ACK or LINK
+	 * @param level DebugLog.OFF, INFO or TRACE
+	 * @return false if the category or level isn't one of those
+	 */
+	public boolean setDebugLevel(int category, int level){
+		return localClock.getDebugLog().setLevel(category, level);
+	}
+
+	/**
+	 * Starts a binary capture of every frame sent and received, in rotating pcap files named after our MAC address
+	 * @param directory the directory to put the capture files in
+	 * @param bytesPerFile the size of each capture file
+	 * @param maxFiles the number of files kept before the oldest is deleted
+	 * @return false if the first capture file couldn't be made
+	 */
+	public boolean startCapture(File directory, int bytesPerFile, int maxFiles){
+		try{
+			localClock.getFrameCapture().start(directory, "capture-" + ourMAC, bytesPerFile, maxFiles);
+			return true;
+		} catch(IOException e){
+			localClock.setLastEvent(LocalClock.UNSPECIFIED_ERROR);
+			if(localClock.getDebugOn())
+				output.println("CAPTURE FAILED: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Stops the frame capture, finishing the file being written
+	 */
+	public void stopCapture(){
+		localClock.getFrameCapture().stop();
+	}
+
+	/**
+	 * Gets the frame capture, for its captured and dropped frame counters
+	 * @return the frame capture
+	 */
+	public FrameCapture getFrameCapture(){
+		return localClock.getFrameCapture();
+	}
+
+	/**
+	 * Gets the log of every status code set, for its per code counters and recent events
+	 * @return the status log
+	 */
+	public StatusLog getStatusLog(){
+		return localClock.getStatusLog();
+	}
+
+	/**
+	 * Gets the most recent status events with the frame each one was about, oldest first
+	 * @param max the most events to get, where anything below 0 gets none
+	 * @return the recent status events
+	 */
+	public List<StatusEvent> getStatusEvents(int max){
+		return localClock.getStatusLog().recent(max);
+	}
+
+	/**
+	 * Gets the number of times a status code has been set since the layer started
+	 * @param code the status code
+	 * @return the count for that code
+	 */
+	public long getStatusCount(int code){
+		return localClock.getStatusLog().getCount(code);
+	}
+
 	/**
 	 * Returns the current status code. See docs for full description.
 	 * @return the number corresponding to the status code
@@ -171,6 +493,11 @@ public class LinkLayer implements Dot11Interface {
 			output.println("Cmd #1: Set debug level.  Debug is on: " + localClock.getDebugOn() + " \n\tUse -1 for full debug output, 0 for no output");
 			output.println("Cmd #2: Set slot selection method.  Currently fixed: " +localClock.getSlotSelectionFixed()+ ", with window of "+ localClock.getCollisionWindow()+ "\n\tUse 0 for random slot selection, any other value to use maxCW");
 			output.println("Cmd #3: Set beacon interval.  Currently at "+ localClock.getBeaconInterval()/1000 + " seconds \n\tValue specifies seconds between the start of beacons; -1 disables");
+			output.println("Cmd #4: Set reorder window.  Currently holding " + localClock.getReorderWindowSize() + " packets per host \n\tValue is rounded up to a power of two for hosts heard from after this");
+			output.println("Cmd #5: Set receive overflow policy.  " + receiverBuf + "\n\tUse 0 to drop newest, 1 to drop oldest, 2 to block briefly, 3 to withhold the ACK");
+			output.println("Cmd #6: Show status events.  " + localClock.getStatusLog() + "\n\tValue is the number of recent events to list, 0 for the counters only");
+			output.println("Cmd #7: Set debug level of one category.  " + localClock.getDebugLog() + "\n\tValue is category * 10 + level, with level 0 for off, 1 for outcomes only, 2 for every state change");
+			output.println("Cmd #8: Capture frames to pcap files.  " + localClock.getFrameCapture() + "\n\tValue is megabytes per file, " + CAPTURE_FILES + " files kept in the wifi.capture.dir directory; 0 stops");
 
 			return 0;
 		}
@@ -186,7 +513,13 @@ public class LinkLayer implements Dot11Interface {
 								"\n\t Debug is on: " + localClock.getDebugOn() +
 								"\n\t Current BackoffCount: " + localClock.getBackoffCount() + 
 								"\n\t Collision window: " + localClock.getCollisionWindow() + 
-								"\n\t Last event status: " + localClock.getLastEvent());
+								"\n\t Last event status: " + localClock.getLastEvent() +
+								"\n\t Status counts: " + localClock.getStatusLog() +
+								"\n\t ACKs: " + outstandingFrames +
+								"\n\t Receive pipeline: " + receivePipeline +
+								"\n\t Clock sync: " + localClock.getSyncReport() +
+								"\n\t Timers: " + timingWheel +
+								"\n\t Capture: " + localClock.getFrameCapture());
 			}
 		}
 		else if(cmd == 2){	//Set slot selection to fixed or random
@@ -206,6 +539,57 @@ public class LinkLayer implements Dot11Interface {
 				output.println("Beacons have been set to " + val + " seconds");
 			}
 		}
+		else if(cmd == 4){	//set the number of out of order packets held per host
+			if(val < 1){
+				localClock.setLastEvent(LocalClock.ILLEGAL_ARGUMENT);
+				output.println("Reorder window must hold at least one packet");
+			}
+			else{
+				localClock.setReorderWindowSize(val);
+				output.println("Reorder window has been set to " + val + " packets");
+			}
+		}
+		else if(cmd == 5){	//set what happens to received packets when the receive buffer is full
+			if(receiverBuf.setPolicy(val))
+				output.println("Receive overflow policy has been set to " + ReceiveBuffer.policyName(val));
+			else{
+				localClock.setLastEvent(LocalClock.ILLEGAL_ARGUMENT);
+				output.println("Receive overflow policy must be 0, 1, 2 or 3");
+			}
+		}
+		else if(cmd == 6){	//show the status counters and the most recent status events
+			if(val < 0){
+				localClock.setLastEvent(LocalClock.ILLEGAL_ARGUMENT);
+				output.println("Number of status events must not be negative");
+			}
+			else{
+				output.println("Status counts: " + localClock.getStatusLog());
+				for(StatusEvent event : localClock.getStatusLog().recent(val))
+					output.println("\t " + event);
+			}
+		}
+		else if(cmd == 7){	//set how much debug output one category gives
+			if(val < 0 || !localClock.getDebugLog().setLevel(val / 10, val % 10)){
+				localClock.setLastEvent(LocalClock.ILLEGAL_ARGUMENT);
+				output.println("Debug level must be a category from 0 to 3 times 10 plus a level from 0 to 2");
+			}
+			else
+				output.println("Debug levels are now " + localClock.getDebugLog());
+		}
+		else if(cmd == 8){	//start or stop capturing frames
+			if(val < 0 || val > 1024){
+				localClock.setLastEvent(LocalClock.ILLEGAL_ARGUMENT);
+				output.println("Capture file size must be from 1 to 1024 megabytes, or 0 to stop");
+			}
+			else if(val == 0){
+				stopCapture();
+				output.println("Frame capture stopped.  " + localClock.getFrameCapture());
+			}
+			else if(startCapture(new File(System.getProperty("wifi.capture.dir", ".")), val << 20, CAPTURE_FILES))
+				output.println("Frame capture started.  " + localClock.getFrameCapture());
+			else
+				output.println("Frame capture couldn't start");
+		}
 		return 0;
 	}
 
@@ -0,0 +1,90 @@
+package wifi;
+
+import java.util.*;
+
+/**
+ * Lets one thread wait on several link layers at once, like a Selector does for channels.
+ * Register the link layers, call {@link #select(long)} to wait until some of them have packets,
+ * then receive from those with {@link LinkLayer#tryRecv(Transmission)}.
+ * @author Brandon Roberts
+ * @author Nate Olderman
+ */
+public class LinkSelector implements ReadinessListener {
+	private LinkedHashSet<LinkLayer> readyLayers; //link layers with packets since the last select, oldest first
+	private HashSet<LinkLayer> registered;
+
+	/**
+	 * Makes a new LinkSelector with nothing registered
+	 */
+	public LinkSelector(){
+		readyLayers = new LinkedHashSet<LinkLayer>();
+		registered = new HashSet<LinkLayer>();
+	}
+
+	/**
+	 * Starts watching a link layer
+	 * @param linkLayer the link layer to watch
+	 */
+	public synchronized void register(LinkLayer linkLayer){
+		if(registered.add(linkLayer)){
+			linkLayer.addReadinessListener(this);
+			if(linkLayer.available() > 0) //it may already have something waiting
+				readyLayers.add(linkLayer);
+		}
+	}
+
+	/**
+	 * Stops watching a link layer
+	 * @param linkLayer the link layer to stop watching
+	 */
+	public synchronized void unregister(LinkLayer linkLayer){
+		if(registered.remove(linkLayer)){
+			linkLayer.removeReadinessListener(this);
+			readyLayers.remove(linkLayer);
+		}
+	}
+
+	/**
+	 * Waits until at least one registered link layer has packets or the timeout passes
+	 * @param timeout how long to wait in milliseconds, 0 to not wait, -1 to wait forever
+	 * @return the link layers that have had packets arrive since the last select, possibly empty
+	 */
+	public synchronized List<LinkLayer> select(long timeout){
+		long deadline = System.currentTimeMillis() + timeout;
+		try{
+			while(readyLayers.isEmpty() && timeout != 0){
+				if(timeout < 0)
+					wait();
+				else{
+					long remaining = deadline - System.currentTimeMillis();
+					if(remaining <= 0)
+						break;
+					wait(remaining);
+				}
+			}
+		} catch(InterruptedException e){
+			//hand back whatever is ready
+		}
+
+		ArrayList<LinkLayer> ready = new ArrayList<LinkLayer>(readyLayers);
+		readyLayers.clear();
+		return ready;
+	}
+
+	/**
+	 * Gets the link layers that have had packets arrive since the last select, without waiting
+	 * @return the ready link layers, possibly empty
+	 */
+	public List<LinkLayer> selectNow(){
+		return select(0);
+	}
+
+	/**
+	 * Marks a link layer as ready and wakes up select
+	 * @param linkLayer the link layer that has a packet
+	 */
+	public synchronized void receiveReady(LinkLayer linkLayer){
+		readyLayers.add(linkLayer);
+		notifyAll();
+	}
+}
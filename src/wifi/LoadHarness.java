@@ -0,0 +1,521 @@
+package wifi;
+
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Command line load test that runs a number of LinkLayer stations against each other on a SharedMedium and
+ * drives traffic through them, to measure the MAC from end to end. The traffic patterns are saturating
+ * unicast (each station to the next), many to one (every station to the first), broadcast storms, and
+ * unicast with mixed frame sizes to random stations. It reports goodput, frames per second, the latency from
+ * send to delivery, retry and drop rates, and collisions, as a table or as one JSON object.
+ * <p>
+ * The stations run on a {@link VirtualClock} unless -realtime is given, so a run takes a fraction of the
+ * simulated time and gives the same results every time for the same seed. Every data frame carries the
+ * time it was sent in its first 8 bytes, and is timed when the receiving station hands it to a subscriber.
+ * <p>
+ * Run with "java -cp .:../classFiles.jar wifi/LoadHarness [options]" from the bin directory, with -help for the options.
+ * @author Brandon Roberts
+ * @author Nate Olderman
+ */
+public class LoadHarness {
+	/**
+	 * Every station sends to the next one, as fast as its queue takes frames
+	 */
+	public static final int UNICAST = 0;
+
+	/**
+	 * Every station but the first sends to the first one
+	 */
+	public static final int MANY_TO_ONE = 1;
+
+	/**
+	 * Every station broadcasts
+	 */
+	public static final int BROADCAST = 2;
+
+	/**
+	 * Every station sends frames of random sizes to random stations
+	 */
+	public static final int MIXED = 3;
+
+	private static final String[] PATTERN_NAMES = {"unicast", "manytoone", "broadcast", "mixed"};
+	private static final int[] MIXED_SIZES = {16, 64, 256, 1024}; 	//payload sizes the mixed pattern picks from
+	private static final int TIME_STAMP_LENGTH = 8; 				//bytes of send time at the start of every payload
+	private static final int MAX_DATA_LENGTH = 2038;
+	private static final long TICK = 5; 			//milliseconds between the driver offering frames
+	private static final long DRAIN_STEP = 60000; 		//milliseconds of draining between checks that frames are still arriving
+	private static final long REAL_TIME_DRAIN_STEP = 2000; 	//the same in real time, where waiting costs real time
+	private static final long MAX_DRAIN_TIME = 3600000; 	//the longest to wait after the last frame is offered for it to get through
+
+	private int stationCount;
+	private int pattern;
+	private int payload; 			//data bytes per frame, not counting the mixed pattern
+	private double rate; 			//frames offered per second per station, 0 to keep every queue full
+	private long durationMillis; 	//how long frames are offered for
+	private long seed;
+	private double lossRate;
+	private long nanosPerByte;
+	private long propagationNanos; 	//above 0 so stations that start in the same instant collide instead of taking turns
+	private long jitterNanos; 		//the most a virtual time wait wakes up late by, so stations don't stay in lockstep
+	private int beaconSeconds; 		//-1 for no beacons
+	private boolean realTime;
+
+	private VirtualClock virtualClock; 	//null in real time
+	private SharedMedium sharedMedium;
+	private LinkLayer[] stations;
+	private CountingMedium[] media;
+	private Random random; 				//picks destinations and sizes for the mixed pattern
+
+	private long offered; 				//send calls
+	private long accepted; 				//frames send took
+	private long expectedDeliveries; 	//one per accepted unicast frame, one per other station for broadcasts
+	private AtomicLong delivered;
+	private AtomicLong deliveredBytes;
+	private long[] latencies; 			//send to delivery of every delivered frame, in nanoseconds
+	private int latencyCount;
+	private long wallMillis; 			//real time the run took
+
+	/**
+	 * Runs a load test with the options given on the command line and prints the results
+	 * @param args the options
+	 */
+	public static void main(String[] args){
+		LoadHarness harness = new LoadHarness();
+		boolean json = false;
+		try{
+			for(int i = 0; i < args.length; i++){
+				String option = args[i];
+				if(option.equals("-json"))
+					json = true;
+				else if(option.equals("-realtime"))
+					harness.realTime = true;
+				else if(option.equals("-help")){
+					printUsage();
+					System.exit(0);
+				}
+				else if(i + 1 < args.length)
+					harness.setOption(option, args[++i]);
+				else
+					throw new IllegalArgumentException(option + " needs a value");
+			}
+			harness.checkOptions();
+		} catch(IllegalArgumentException e){
+			System.err.println(e.getMessage());
+			printUsage();
+			System.exit(1);
+		}
+
+		harness.run();
+		System.out.println(json ? harness.toJSON() : harness.toString());
+		System.exit(0); //the link layer's threads never stop on their own
+	}
+
+	/**
+	 * Makes a new LoadHarness with 4 stations sending 100 byte frames to each other for 10 simulated minutes
+	 */
+	public LoadHarness(){
+		stationCount = 4;
+		pattern = UNICAST;
+		payload = 100;
+		durationMillis = 600000;
+		seed = 1;
+		nanosPerByte = SharedMedium.DEFAULT_NANOS_PER_BYTE;
+		propagationNanos = 1000;
+		jitterNanos = 100000;
+		beaconSeconds = -1;
+
+		delivered = new AtomicLong();
+		deliveredBytes = new AtomicLong();
+		latencies = new long[1024];
+	}
+
+	/**
+	 * Runs the load test: starts the stations, offers frames for the duration, then gives what was sent time to get through
+	 */
+	public void run(){
+		startStations();
+
+		long wallStart = System.nanoTime();
+		double[] credit = new double[stationCount];
+		for(long elapsed = 0; elapsed < durationMillis; elapsed += TICK){
+			for(int i = 0; i < stationCount; i++){
+				if(pattern == MANY_TO_ONE && i == 0)
+					continue; //the first station only receives
+
+				if(rate <= 0){
+					while(offer(i, false))
+						; //fill the queue
+				}
+				else{
+					credit[i] += rate * TICK / 1000.0;
+					for(; credit[i] >= 1; credit[i]--)
+						offer(i, true);
+				}
+			}
+			advance(TICK);
+		}
+		long step = realTime ? REAL_TIME_DRAIN_STEP : DRAIN_STEP;
+		long before;
+		long drained = 0;
+		do{ //until the queues have emptied, or what is left is never going to make it
+			before = delivered.get();
+			advance(step);
+			drained += step;
+		} while(delivered.get() > before && drained < MAX_DRAIN_TIME);
+		wallMillis = (System.nanoTime() - wallStart) / 1000000L;
+	}
+
+	/**
+	 * Gets the latency that a fraction of the delivered frames were at or under
+	 * @param fraction the fraction, such as 0.99
+	 * @return the latency in milliseconds, or 0 if nothing was delivered
+	 */
+	public synchronized double getLatencyPercentile(double fraction){
+		if(latencyCount == 0)
+			return 0;
+		long[] sorted = Arrays.copyOf(latencies, latencyCount);
+		Arrays.sort(sorted);
+		int index = (int)Math.ceil(fraction * latencyCount) - 1;
+		return sorted[Math.max(0, Math.min(latencyCount - 1, index))] / 1e6;
+	}
+
+	/**
+	 * Gets the frames delivered per second of the time frames were offered for
+	 * @return the delivered frame rate
+	 */
+	public double getFramesPerSecond(){
+		return delivered.get() * 1000.0 / durationMillis;
+	}
+
+	/**
+	 * Gets the data bytes delivered per second of the time frames were offered for, not counting the time stamps
+	 * @return the goodput in bytes per second
+	 */
+	public double getGoodput(){
+		return deliveredBytes.get() * 1000.0 / durationMillis;
+	}
+
+	/**
+	 * Gets the fraction of data frames sent that were retransmissions
+	 * @return the retry rate
+	 */
+	public double getRetryRate(){
+		long sent = sumDataSent();
+		return (sent == 0) ? 0 : (double)sumRetries() / sent;
+	}
+
+	/**
+	 * Gets the fraction of the deliveries the accepted frames should have made that never happened
+	 * @return the drop rate
+	 */
+	public double getDropRate(){
+		return (expectedDeliveries == 0) ? 0 : 1 - (double)delivered.get() / expectedDeliveries;
+	}
+
+	/**
+	 * Describes the results as a table
+	 * @return the results, one per line
+	 */
+	public String toString(){
+		return String.format(Locale.ROOT, "%s, %d stations, %s payload, %s, %d s of traffic run in %d ms (%s, seed %d)%n",
+					PATTERN_NAMES[pattern], stationCount, (pattern == MIXED) ? "mixed" : payload + " byte",
+					(rate <= 0) ? "saturating" : rate + " frames/s per station", durationMillis / 1000, wallMillis,
+					realTime ? "real time" : "virtual time", seed) +
+				String.format(Locale.ROOT, "  Offered:    %d frames, %d accepted, %d rejected by full queues%n", offered, accepted, offered - accepted) +
+				String.format(Locale.ROOT, "  Delivered:  %d of %d expected (drop rate %.4f)%n", delivered.get(), expectedDeliveries, getDropRate()) +
+				String.format(Locale.ROOT, "  Goodput:    %.1f bytes/s, %.3f frames/s%n", getGoodput(), getFramesPerSecond()) +
+				String.format(Locale.ROOT, "  Latency:    p50 %.1f ms, p99 %.1f ms, p999 %.1f ms, max %.1f ms%n", getLatencyPercentile(0.5),
+					getLatencyPercentile(0.99), getLatencyPercentile(0.999), getLatencyPercentile(1)) +
+				String.format(Locale.ROOT, "  Retries:    %d of %d data transmissions (retry rate %.4f), %d abandoned%n", sumRetries(), sumDataSent(),
+					getRetryRate(), sumStatus(LocalClock.TX_FAILED)) +
+				String.format(Locale.ROOT, "  Medium:     %s", sharedMedium);
+	}
+
+	/**
+	 * Describes the results as one JSON object
+	 * @return the results
+	 */
+	public String toJSON(){
+		return "{\"pattern\":\"" + PATTERN_NAMES[pattern] + "\",\"stations\":" + stationCount + ",\"payload\":" + ((pattern == MIXED) ? "\"mixed\"" : payload) +
+				",\"rate\":" + rate + ",\"durationMs\":" + durationMillis + ",\"wallMs\":" + wallMillis + ",\"virtualTime\":" + !realTime +
+				",\"seed\":" + seed + ",\"lossRate\":" + lossRate + ",\"nanosPerByte\":" + nanosPerByte + ",\"propagationNanos\":" + propagationNanos + ",\"jitterNanos\":" + (realTime ? 0 : jitterNanos) +
+				",\"offered\":" + offered + ",\"accepted\":" + accepted + ",\"rejected\":" + (offered - accepted) +
+				",\"expected\":" + expectedDeliveries + ",\"delivered\":" + delivered.get() + ",\"deliveredBytes\":" + deliveredBytes.get() +
+				",\"goodputBytesPerSec\":" + json(getGoodput()) + ",\"framesPerSec\":" + json(getFramesPerSecond()) +
+				",\"latencyMs\":{\"p50\":" + json(getLatencyPercentile(0.5)) + ",\"p99\":" + json(getLatencyPercentile(0.99)) +
+				",\"p999\":" + json(getLatencyPercentile(0.999)) + ",\"max\":" + json(getLatencyPercentile(1)) + "}" +
+				",\"dataTransmissions\":" + sumDataSent() + ",\"retries\":" + sumRetries() + ",\"retryRate\":" + json(getRetryRate()) +
+				",\"abandoned\":" + sumStatus(LocalClock.TX_FAILED) + ",\"dropRate\":" + json(getDropRate()) +
+				",\"transmitted\":" + sharedMedium.getTransmitted() + ",\"collisions\":" + sharedMedium.getCollided() + "}";
+	}
+
+
+//----------------------------------------------------------------------------------------------------------//
+//---------------------------------------- Helper Methods --------------------------------------------------//
+//----------------------------------------------------------------------------------------------------------//
+
+	/**
+	 * Sets one option from the command line
+	 * @param option the option's name
+	 * @param value the option's value
+	 */
+	private void setOption(String option, String value){
+		try{
+			if(option.equals("-stations"))
+				stationCount = Integer.parseInt(value);
+			else if(option.equals("-pattern"))
+				pattern = Arrays.asList(PATTERN_NAMES).indexOf(value);
+			else if(option.equals("-payload"))
+				payload = Integer.parseInt(value);
+			else if(option.equals("-rate"))
+				rate = Double.parseDouble(value);
+			else if(option.equals("-duration"))
+				durationMillis = Long.parseLong(value) * 1000;
+			else if(option.equals("-seed"))
+				seed = Long.parseLong(value);
+			else if(option.equals("-loss"))
+				lossRate = Double.parseDouble(value);
+			else if(option.equals("-nanosPerByte"))
+				nanosPerByte = Long.parseLong(value);
+			else if(option.equals("-propagation"))
+				propagationNanos = Long.parseLong(value);
+			else if(option.equals("-jitter"))
+				jitterNanos = Long.parseLong(value);
+			else if(option.equals("-beacons"))
+				beaconSeconds = Integer.parseInt(value);
+			else
+				throw new IllegalArgumentException("Unknown option " + option);
+		} catch(NumberFormatException e){
+			throw new IllegalArgumentException(option + " needs a number, not " + value);
+		}
+	}
+
+	/**
+	 * Makes sure the options make sense together
+	 */
+	private void checkOptions(){
+		if(pattern < 0)
+			throw new IllegalArgumentException("Pattern must be one of " + Arrays.toString(PATTERN_NAMES));
+		if(stationCount < 2)
+			throw new IllegalArgumentException("There must be at least 2 stations");
+		if(payload < TIME_STAMP_LENGTH || payload > MAX_DATA_LENGTH)
+			throw new IllegalArgumentException("Payload must be from " + TIME_STAMP_LENGTH + " to " + MAX_DATA_LENGTH + " bytes");
+		if(durationMillis <= 0 || nanosPerByte < 0 || propagationNanos < 0 || jitterNanos < 0 || rate < 0 || lossRate < 0 || lossRate > 1)
+			throw new IllegalArgumentException("Duration must be positive, and the rate, loss, airtime, propagation and jitter must not be negative");
+	}
+
+	/**
+	 * Prints the options
+	 */
+	private static void printUsage(){
+		System.err.println("Usage: LoadHarness [-json] [-realtime] [-stations n] [-pattern unicast|manytoone|broadcast|mixed]\n" +
+				"\t[-payload bytes] [-rate frames/s per station, 0 saturates] [-duration simulated seconds] [-seed n]\n" +
+				"\t[-loss rate] [-nanosPerByte airtime] [-propagation nanos] [-jitter nanos] [-beacons seconds]");
+	}
+
+	/**
+	 * Makes the medium and the stations, each one subscribed to every data frame it receives so they are timed as they arrive
+	 */
+	private void startStations(){
+		if(!realTime){
+			virtualClock = new VirtualClock(seed);
+			virtualClock.setJitterNanos(jitterNanos);
+		}
+		sharedMedium = new SharedMedium(seed, virtualClock);
+		sharedMedium.setLossRate(lossRate);
+		sharedMedium.setNanosPerByte(nanosPerByte);
+		sharedMedium.setPropagationNanos(propagationNanos);
+		random = new Random(seed);
+
+		PrintWriter output = new PrintWriter(new OutputStream(){ //the layers' text output isn't what is being measured
+			public void write(int b){}
+			public void write(byte[] bytes, int offset, int length){}
+		});
+		stations = new LinkLayer[stationCount];
+		media = new CountingMedium[stationCount];
+		for(int i = 0; i < stationCount; i++){
+			media[i] = new CountingMedium(sharedMedium.attach());
+			stations[i] = new LinkLayer((short)(i + 1), output, media[i], virtualClock);
+			stations[i].subscribe(Subscription.ANY_SOURCE, Subscription.ANY_TYPE, new FrameListener(){
+				public void frameReceived(Transmission t){
+					recordDelivery(t.getBuf());
+				}
+			});
+			if(beaconSeconds > 0)
+				stations[i].command(3, beaconSeconds);
+		}
+	}
+
+	/**
+	 * Offers one frame from a station for the pattern
+	 * @param station the index of the sending station
+	 * @param countRejection false when filling the queue, where a full queue is how we know to stop
+	 * @return true if the station took it
+	 */
+	private boolean offer(int station, boolean countRejection){
+		int size = payload;
+		short dest;
+		int receivers = 1;
+		if(pattern == UNICAST)
+			dest = (short)((station + 1) % stationCount + 1);
+		else if(pattern == MANY_TO_ONE)
+			dest = 1;
+		else if(pattern == BROADCAST){
+			dest = -1;
+			receivers = stationCount - 1;
+		}
+		else{
+			int other = random.nextInt(stationCount - 1);
+			dest = (short)(((other >= station) ? other + 1 : other) + 1); //anyone but the sender
+			size = MIXED_SIZES[random.nextInt(MIXED_SIZES.length)];
+		}
+
+		byte[] data = new byte[size];
+		long sent = now();
+		for(int i = 0; i < TIME_STAMP_LENGTH; i++)
+			data[i] = (byte)(sent >>> (56 - 8 * i));
+
+		if(stations[station].send(dest, data, size) == 0){
+			if(countRejection)
+				offered++;
+			return false;
+		}
+		offered++;
+		accepted++;
+		expectedDeliveries += receivers;
+		return true;
+	}
+
+	/**
+	 * Counts a delivered frame and how long it took
+	 * @param data the frame's data, starting with the time it was sent
+	 */
+	private synchronized void recordDelivery(byte[] data){
+		long sent = 0;
+		for(int i = 0; i < TIME_STAMP_LENGTH; i++)
+			sent = (sent << 8) | (data[i] & 0xFF);
+
+		delivered.incrementAndGet();
+		deliveredBytes.addAndGet(data.length - TIME_STAMP_LENGTH);
+		if(latencyCount == latencies.length)
+			latencies = Arrays.copyOf(latencies, latencyCount * 2);
+		latencies[latencyCount++] = now() - sent;
+	}
+
+	/**
+	 * Lets the stations run
+	 * @param millis how long to let them run in milliseconds
+	 */
+	private void advance(long millis){
+		if(virtualClock != null){
+			virtualClock.run(millis);
+			return;
+		}
+
+		try{
+			Thread.sleep(millis);
+		} catch(InterruptedException e){
+			System.err.println("Load test interrupted!");
+		}
+	}
+
+	/**
+	 * Gets the time frames are stamped and timed with
+	 * @return the virtual clock's time, or System.nanoTime() in real time
+	 */
+	private long now(){
+		return (virtualClock != null) ? virtualClock.nanoTime() : System.nanoTime();
+	}
+
+	/**
+	 * Adds up the data frames every station transmitted, retries included
+	 * @return the total count
+	 */
+	private long sumDataSent(){
+		long total = 0;
+		for(CountingMedium medium : media)
+			total += medium.dataSent.get();
+		return total;
+	}
+
+	/**
+	 * Adds up the data frames every station retransmitted
+	 * @return the total count
+	 */
+	private long sumRetries(){
+		long total = 0;
+		for(CountingMedium medium : media)
+			total += medium.dataRetries.get();
+		return total;
+	}
+
+	/**
+	 * Adds up how many times every station set a status code
+	 * @param code the status code
+	 * @return the total count
+	 */
+	private long sumStatus(int code){
+		long total = 0;
+		for(LinkLayer station : stations)
+			total += station.getStatusCount(code);
+		return total;
+	}
+
+	/**
+	 * Formats a number for JSON, which has no NaN or infinity
+	 * @param value the number
+	 * @return the number as JSON
+	 */
+	private static String json(double value){
+		if(Double.isNaN(value) || Double.isInfinite(value))
+			return "null";
+		return String.format(Locale.ROOT, "%.4f", value);
+	}
+
+	/**
+	 * Medium in front of a station's medium that counts the data frames it sends and how many were retries
+	 */
+	private static class CountingMedium implements Medium {
+		private Medium medium;
+		private AtomicLong dataSent = new AtomicLong();
+		private AtomicLong dataRetries = new AtomicLong();
+
+		private CountingMedium(Medium theMedium){
+			medium = theMedium;
+		}
+
+		public int transmit(byte[] frame){
+			if(frame.length > 0 && (frame[0] & 0xE0) == 0){ //data frames are type 0
+				dataSent.incrementAndGet();
+				if((frame[0] & 0x10) != 0) //the retry bit
+					dataRetries.incrementAndGet();
+			}
+			return medium.transmit(frame);
+		}
+
+		public byte[] receive(){
+			return medium.receive();
+		}
+
+		public boolean inUse(){
+			return medium.inUse();
+		}
+
+		public long clock(){
+			return medium.clock();
+		}
+
+		public long getIdleTime(){
+			return medium.getIdleTime();
+		}
+
+		public boolean dataWaiting(){
+			return medium.dataWaiting();
+		}
+	}
+}
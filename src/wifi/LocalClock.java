@@ -2,8 +2,15 @@ package wifi;
 
 import rf.RF;
 
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.*;
+
 /**
  * A class to represent an 802.11~ clock.
+ * Its getters and the MAC counters don't lock: settings live in an immutable snapshot that is swapped atomically
+ * when a command changes one, the backoff count, collision window, status and clock offset are atomics, and the
+ * local time is the Medium's clock plus that offset. Only restarting the beacon timer is synchronized.
  * @author Nate Olderman
  * @author Brandon Roberts
  */
@@ -60,51 +67,70 @@ public class LocalClock{
 	public static final int INSUFFICIENT_BUFFER_SPACE = 10;
 
 	
-	//these values were estimated averaging the results of:
-	//10 tests using a Macbook pro with a Intel i7 processor running at 2.3 GHz (sending to the Gateway)
-	//10 tests using a Gateway with a AMD A8 processor running at 1.9 GHz (sending to the Mac)
-	//5 tests using the MAC (as the sender) and one of the lab machines (advance computing lab) (as receiver)
-	private static final long CREATE_BEACON_OFFSET = 1425; //Average time to package a beacon and send it in milliseconds
-	private static final long PROCESS_BEACON_OFFSET = 0; //Averaged as .02 milliseconds which was rounded down to zero
 	private static final int ACK_TIMEOUT_VALUE = RF.aSlotTime + 3629; //after 15 tests we averaged 3629 ms
 
 	private static final int DIFS = RF.aSIFSTime + (2 * RF.aSlotTime);
 
-	private RF rf;
-	
-	private long clockOffset; //the offset between the local rf.clocks time and the advanced time calculated from received beacons
+	private static final int DEFAULT_REORDER_WINDOW = 8; //double the allocated window space as can be sent at one time
+	private static final double AIRTIME_SMOOTHING = 0.25; //weight of the newest measurement in the beacon airtime estimate
+	private static final int STATUS_LOG_SIZE = 256; //recent status events kept
+
+	private Medium medium;
 	
-	private boolean beaconsOn; //whether or not beacons are turned on
-	private double beaconInterval; //the length of time between sending beacons
-	private long lastBeaconTime; //the time of the last beacon sent
+	private AtomicLong clockOffset; //the offset between the local medium clock time and the advanced time calculated from received beacons
+	private volatile double beaconAirtime; //measured time for a beacon to go out over the RF layer in milliseconds
+	private ConcurrentHashMap<Short, PeerClockSync> peerSyncs; //how far each peer sending beacons is from us
 
-	private boolean slotSelectionFixed; //true if the slot selection is fixed
-	private int backoffCount;
-	private int windowSize;
+	private AtomicReference<Settings> settings; //everything a command can change, replaced as a whole
 
-	private long startACKWait; //the start time of waiting for an ACK
+	private AtomicInteger backoffCount;
+	private AtomicInteger windowSize;
+
+	private TimingWheel timingWheel; //runs every MAC deadline
+	private VirtualClock virtualClock; //simulated time every wait and timestamp uses instead of real time, null for real time
+	private Random random; //draws the random backoff slots
+	private volatile Runnable beaconTask; //run each beacon interval while beacons are on, null until the sender starts beacons
+	private volatile TimingWheel.Timer beaconTimer; //the pending beacon interval, null while beacons are off
 	
-	private int currentStatus; //whichever one of the above status codes happened the most recently
+	private AtomicInteger currentStatus; //whichever one of the above status codes happened the most recently
+	private StatusLog statusLog; //every status code that has happened, with counters per code
+	private DebugLog debugLog; //debug output levels per category, and the ring the output goes through
+	private FrameCapture frameCapture; //binary record of every frame sent and received, off until started
 
-	private boolean debugOn; //whether or not debug is turned on
+	/**
+	* Creates a new LocalClock with a given medium
+	* @param theMedium the medium for the local clock's time to be based off of
+	* @param theTimingWheel the timing wheel that runs the MAC deadlines
+	*/
+	public LocalClock(Medium theMedium, TimingWheel theTimingWheel){
+		this(theMedium, theTimingWheel, null, new Random());
+	}
 
 	/**
-	* Creates a new LocalClock with a given RF layer
-	* @param theRF the RF layer for the local clock's time to be based off of
+	* Creates a new LocalClock that may run in virtual time
+	* @param theMedium the medium for the local clock's time to be based off of
+	* @param theTimingWheel the timing wheel that runs the MAC deadlines, made with the same virtual clock
+	* @param theVirtualClock the virtual clock to wait and timestamp with, or null for real time
+	* @param theRandom the random to draw backoff slots from
 	*/
-	public LocalClock(RF theRF){
-		rf = theRF;
+	public LocalClock(Medium theMedium, TimingWheel theTimingWheel, VirtualClock theVirtualClock, Random theRandom){
+		medium = theMedium;
+		timingWheel = theTimingWheel;
+		virtualClock = theVirtualClock;
+		random = theRandom;
 		
 		//initialize global variables
-		clockOffset = 0;
-		beaconInterval = 6000; //default set at 6 seconds
-		lastBeaconTime = 0;
-		slotSelectionFixed = false; //defaults to random slot selection
-		beaconsOn = false;
-		debugOn = false;
-		backoffCount = 0;
-		windowSize = 1;
-		currentStatus = 0;
+		clockOffset = new AtomicLong(0);
+		beaconAirtime = 0; //learned from the first beacon we send
+		peerSyncs = new ConcurrentHashMap<Short, PeerClockSync>();
+		//defaults to debug off, random slot selection, beacons off at 6 seconds
+		debugLog = new DebugLog(this);
+		settings = new AtomicReference<Settings>(new Settings(false, false, 6000, DEFAULT_REORDER_WINDOW));
+		backoffCount = new AtomicInteger(0);
+		windowSize = new AtomicInteger(1);
+		currentStatus = new AtomicInteger(0);
+		statusLog = new StatusLog(STATUS_LOG_SIZE);
+		frameCapture = new FrameCapture(this);
 	}
 
 
@@ -114,38 +140,53 @@ public class LocalClock{
 	* @return rounded up DIFS wait time
 	*/
 	public long roundedUpDIFS(){
-		return DIFS + (50 - rf.clock()%50);
+		return DIFS + (50 - medium.clock()%50);
 	}
 
 
 	/**
-	* Calculates the time for a beacon
-	* @return the beacon time in bytes or null if the beacon interval has not passed
+	* Gets the time to put in a beacon that is due
+	* @return the beacon time in bytes (restamped by stampBeacon when it is transmitted)
 	*/
-	public synchronized byte[] calcBeaconTime(){
-		//offset isn't used here in interval calculation 
-		//because when these two are subtracted it would get negated anyway
-		if(beaconsOn && rf.clock() - lastBeaconTime >= beaconInterval){
-			lastBeaconTime = rf.clock();//update lastBeaconTime for use here as well
-
-			//make a data buffer with the current clock time
-			long beaconTime = lastBeaconTime + clockOffset + CREATE_BEACON_OFFSET;
-			
-			byte[] beaconTimeArray = new byte[8]; //8 bytes for the beacon time
-			for(int i = beaconTimeArray.length - 1; i >= 0; i--){
-				beaconTimeArray[i] = (byte)(beaconTime & 0xFF);
-				beaconTime = beaconTime >>> 8;
-			}
-			return beaconTimeArray;
-		}
-		return null;//otherwise it isn't ready to send beacon
+	public byte[] calcBeaconTime(){
+		return timeToBytes(getLocalTime());
+	}
+
+	/**
+	* Starts running a task every beacon interval while beacons are turned on
+	* @param onBeaconDue what to run on the timing wheel thread when a beacon is due
+	*/
+	public void startBeaconTimer(Runnable onBeaconDue){
+		beaconTask = onBeaconDue;
+		restartBeaconTimer(0);
+	}
+
+	/**
+	* Puts the current time in a beacon right before it is transmitted, plus the time it will take to go
+	* out over the RF layer so it is right when it arrives
+	* @param beacon the beacon about to be transmitted
+	*/
+	public void stampBeacon(Packet beacon){
+		beacon.setDataBuf(timeToBytes(getLocalTime() + Math.round(beaconAirtime)));
+	}
+
+	/**
+	* Records how long a beacon took to transmit, which is how late its timestamp is when it arrives
+	* @param nanos how long the RF layer took to transmit it, in nanoseconds
+	*/
+	public void recordBeaconAirtime(long nanos){
+		double airtime = nanos / 1e6;
+		if(beaconAirtime == 0)
+			beaconAirtime = airtime;
+		else
+			beaconAirtime += AIRTIME_SMOOTHING * (airtime - beaconAirtime);
 	}
 
 	/**
 	* Updates the offset for the clock based on the give beacon packet's time
 	* @param packet the beacon packet that has the time to update to
 	*/
-	public synchronized void updateClockOffset(Packet packet){
+	public void updateClockOffset(Packet packet){
 		//get the time in a byte array from the data buf
 		byte[] timeArray = packet.getDataBuf();
 
@@ -156,25 +197,85 @@ public class LocalClock{
 			otherHostTime += (timeArray[i] & 0xFF);
 		}
 
-		//get the difference in the clocks
-		long clockDifference = otherHostTime + PROCESS_BEACON_OFFSET - getLocalTime();
-		if(clockDifference > 0)//if the other host is ahead of us in time, advance our time to match
-			clockOffset += clockDifference;
+		//the other host's clock kept going while we were decoding and processing the beacon
+		double processingDelay = 0;
+		if(packet.getReceivedNanos() != 0)
+			processingDelay = (nanoTime() - packet.getReceivedNanos()) / 1e6;
+
+		//filter the offset from this peer with the ones before it
+		long now = medium.clock();
+		PeerClockSync sync = peerSyncs.get(packet.getSrcAddr());
+		if(sync == null){
+			peerSyncs.putIfAbsent(packet.getSrcAddr(), new PeerClockSync(packet.getSrcAddr()));
+			sync = peerSyncs.get(packet.getSrcAddr());
+		}
+		sync.addSample(otherHostTime + processingDelay - now, now);
+
+		//if the other host is ahead of us in time, advance our time to match
+		long peerOffset = Math.round(sync.predictOffset(now));
+		long offset;
+		do{
+			offset = clockOffset.get();
+		} while(peerOffset > offset && !clockOffset.compareAndSet(offset, peerOffset));
+	}
+
+	/**
+	* Describes how well we are synced with every peer we have heard beacons from
+	* @return one line per peer
+	*/
+	public String getSyncReport(){
+		String report = "Beacon airtime: " + String.format("%.2f", beaconAirtime) + " ms | Clock offset: " + clockOffset.get() + " ms";
+		for(PeerClockSync sync : peerSyncs.values())
+			report += "\n\t " + sync;
+		return report;
 	}
 
 	/**
 	* Starts an ACK timer
+	* @param onTimeout what to run on the timing wheel thread if the ACK doesn't come in time
+	* @return the timer, to cancel when the ACK comes
+	*/
+	public TimingWheel.Timer startACKTimer(Runnable onTimeout){
+		return timingWheel.schedule(onTimeout, ACK_TIMEOUT_VALUE);
+	}
+
+	/**
+	* Runs a task once a delay has passed
+	* @param task what to run on the timing wheel thread
+	* @param delay how long from now to run it in milliseconds
+	* @return the timer, to cancel it with
 	*/
-	public synchronized void startACKTimer(){
-		startACKWait = rf.clock();
+	public TimingWheel.Timer schedule(Runnable task, long delay){
+		return timingWheel.schedule(task, delay);
 	}
 
 	/**
-	* Checks if the ACK timer had timed out
-	* @return true the ACK timer had timed otu
+	* Waits for an amount of time, which takes no real time when running in virtual time
+	* @param millis how long to wait in milliseconds
+	* @throws InterruptedException if the thread is interrupted while waiting in real time
 	*/
-	public synchronized boolean checkACKTimeout(){
-		return (rf.clock() - startACKWait >= ACK_TIMEOUT_VALUE);
+	public void sleep(long millis) throws InterruptedException{
+		if(virtualClock != null)
+			virtualClock.sleep(millis);
+		else
+			Thread.sleep(millis);
+	}
+
+	/**
+	* Gets the time for measuring how long something took, System.nanoTime() unless running in virtual time
+	* @return the time in nanoseconds
+	*/
+	public long nanoTime(){
+		return (virtualClock != null) ? virtualClock.nanoTime() : System.nanoTime();
+	}
+
+	/**
+	* Picks a random backoff slot
+	* @param windowSize the collision window
+	* @return a slot from 0 to the window size
+	*/
+	public int randomSlot(int windowSize){
+		return random.nextInt(windowSize + 1);
 	}
 
 
@@ -186,64 +287,112 @@ public class LocalClock{
 	* Gets if the slot selection is fixed
 	* @return true if the slot selection is fixed
 	*/
-	public synchronized boolean getSlotSelectionFixed(){
-		return slotSelectionFixed;
+	public boolean getSlotSelectionFixed(){
+		return settings.get().slotSelectionFixed;
 	}
 
 	/**
 	* Gets the beacon interval
 	* @return the beacon interval
 	*/
-	public synchronized double getBeaconInterval(){
-		return beaconInterval;
+	public double getBeaconInterval(){
+		return settings.get().beaconInterval;
 	}
 	
 	/**
 	 * Determines if beacons are turned on
 	 * @return true if beacons are on
 	 */
-	public synchronized boolean getBeaconsOn(){
-		return beaconsOn;
+	public boolean getBeaconsOn(){
+		return settings.get().beaconsOn;
 	}
 	
 	/**
 	 * Determines if debug is turned on
 	 * @return true if debug is on
 	 */
-	public synchronized boolean getDebugOn(){
-		return debugOn;
+	public boolean getDebugOn(){
+		return debugLog.anyEnabled();
+	}
+
+	/**
+	 * Gets the debug log, which has a level for each category of debug output
+	 * @return the debug log
+	 */
+	public DebugLog getDebugLog(){
+		return debugLog;
+	}
+
+	/**
+	 * Gets the frame capture, which every frame sent and received goes through
+	 * @return the frame capture
+	 */
+	public FrameCapture getFrameCapture(){
+		return frameCapture;
 	}
 	
 	/**
 	 * Determines what the backoff count is currently at
 	 * @return the size of the backoff count
 	 */
-	public synchronized int getBackoffCount(){
-		return backoffCount;
+	public int getBackoffCount(){
+		return backoffCount.get();
 	}
 	
 	/**
 	 * Determines what the collision window is currently at
 	 * @return the size of the collision window
 	 */
-	public synchronized int getCollisionWindow(){
-		return windowSize;
+	public int getCollisionWindow(){
+		return windowSize.get();
 	}
 	
 	/**
 	 * Determines the currentStatus
 	 * @return the currentStatus
 	 */
-	public synchronized int getLastEvent(){
-		return currentStatus;
+	public int getLastEvent(){
+		return currentStatus.get();
+	}
+
+	/**
+	 * Gets the log of every status code that has happened
+	 * @return the status log
+	 */
+	public StatusLog getStatusLog(){
+		return statusLog;
+	}
+
+	/**
+	 * Determines how many packets past the expected one are held per host
+	 * @return the reorder window size
+	 */
+	public int getReorderWindowSize(){
+		return settings.get().reorderWindowSize;
+	}
+
+	/**
+	 * Gets the timing wheel that runs the MAC deadlines
+	 * @return the timing wheel
+	 */
+	public TimingWheel getTimingWheel(){
+		return timingWheel;
+	}
+
+	/**
+	 * Gets the virtual clock every wait goes through
+	 * @return the virtual clock, or null when running in real time
+	 */
+	public VirtualClock getVirtualClock(){
+		return virtualClock;
 	}
 
 	/**
 	 * Returns the current clock offset
 	 * @return the clock offset
 	 */
-	public synchronized long getLocalTime(){
-		return clockOffset + rf.clock();
+	public long getLocalTime(){
+		return clockOffset.get() + medium.clock();
 	}
 
 
@@ -254,64 +403,151 @@ public class LocalClock{
 	/**
 	 * It turns the beacons on (or else it gets the hose again)
 	 */
-	public synchronized void setBeaconsOn(){
-			beaconsOn = true;
+	public void setBeaconsOn(){
+		Settings current;
+		do{
+			current = settings.get();
+		} while(!settings.compareAndSet(current, new Settings(current.slotSelectionFixed, true, current.beaconInterval, current.reorderWindowSize)));
+		restartBeaconTimer(0); //send one right away
 	}
 
 	/**
 	* Set whether or not the slot selection is fixed
 	* @param slotCommand the command should be 0 for random slot selection or anything else for fixed
 	*/
-	public synchronized void setSlotSelectionFixed(int slotCommand){
-		if(slotCommand == 0)
-			slotSelectionFixed = false;
-		else
-			slotSelectionFixed = true;
+	public void setSlotSelectionFixed(int slotCommand){
+		Settings current;
+		do{
+			current = settings.get();
+		} while(!settings.compareAndSet(current, new Settings(slotCommand != 0, current.beaconsOn, current.beaconInterval, current.reorderWindowSize)));
 	}
 
 	/**
 	* Set the beacon interval
 	* @param theBeaconInterval the beacon interval
 	*/
-	public synchronized void setBeaconInterval(double theBeaconInterval){
-		if(theBeaconInterval == -1)
-			beaconsOn = false;
-		else
-			beaconInterval = theBeaconInterval * 1000;
+	public void setBeaconInterval(double theBeaconInterval){
+		Settings current;
+		Settings updated;
+		do{
+			current = settings.get();
+			if(theBeaconInterval == -1)
+				updated = new Settings(current.slotSelectionFixed, false, current.beaconInterval, current.reorderWindowSize);
+			else
+				updated = new Settings(current.slotSelectionFixed, current.beaconsOn, theBeaconInterval * 1000, current.reorderWindowSize);
+		} while(!settings.compareAndSet(current, updated));
+		restartBeaconTimer(0); //start the new interval from now
 	}
 	
 	/**
 	* Sets whether or not debug is on
 	* @param debug should be 0 to turn debug off, or anything else to turn it on
 	*/
-	public synchronized void setDebug(int debug){
-		if(debug == 0)
-			debugOn = false;
-		else
-			debugOn = true;
+	public void setDebug(int debug){
+		debugLog.setAllLevels(debug != 0 ? DebugLog.TRACE : DebugLog.OFF);
 	}
 	
 	/**
 	 * Sets the backoff count
 	 * @param backoff the backoff count to set it to
 	 */
-	public synchronized void setBackoffCount(int backoff){
-		backoffCount = backoff;
+	public void setBackoffCount(int backoff){
+		backoffCount.set(backoff);
 	}
 	
 	/**
 	 * Sets the collision window size
 	 * @param collisionWindow the size to set it to
 	 */
-	public synchronized void setCollisionWindow(int collisionWindow){
-		windowSize = collisionWindow;
+	public void setCollisionWindow(int collisionWindow){
+		windowSize.set(collisionWindow);
+	}
+
+	/**
+	 * Sets the reorder window size used for hosts we haven't heard from yet
+	 * @param theWindowSize the size to set it to
+	 */
+	public void setReorderWindowSize(int theWindowSize){
+		Settings current;
+		do{
+			current = settings.get();
+		} while(!settings.compareAndSet(current, new Settings(current.slotSelectionFixed, current.beaconsOn, current.beaconInterval, theWindowSize)));
 	}
 	
 	/**
 	 * Updates the currentStatus of the program
 	 * @param newStatus
 	 */
-	public synchronized void setLastEvent(int newStatus){
-		currentStatus = newStatus;
+	public void setLastEvent(int newStatus){
+		setLastEvent(newStatus, StatusEvent.NONE, StatusEvent.NONE);
+	}
+
+	/**
+	 * Updates the currentStatus of the program and logs which frame it was about
+	 * @param newStatus the status code
+	 * @param peer the MAC address of the other host, or StatusEvent.NONE
+	 * @param seqNum the sequence number of the frame, or StatusEvent.NONE
+	 */
+	public void setLastEvent(int newStatus, int peer, int seqNum){
+		currentStatus.set(newStatus);
+		statusLog.record(getLocalTime(), newStatus, peer, seqNum);
+	}
+
+
+	/**
+	 * Replaces the pending beacon timer with one that goes off after the given delay, then every beacon interval,
+	 * or just cancels it while beacons are off so the timing wheel has nothing to wake up for
+	 * @param delay how long until the next beacon is due in milliseconds
+	 */
+	private synchronized void restartBeaconTimer(long delay){ //synchronized so a setter and the timer going off can't both leave one running
+		TimingWheel.Timer old = beaconTimer;
+		if(old != null)
+			old.cancel();
+		beaconTimer = null;
+
+		if(beaconTask == null || !settings.get().beaconsOn)
+			return; //the sender hasn't started beacons yet, or they are off until setBeaconsOn
+
+		beaconTimer = timingWheel.schedule(new Runnable(){
+			public void run(){
+				Settings current = settings.get();
+				if(!current.beaconsOn)
+					return; //turned off as it went off
+				beaconTask.run();
+				restartBeaconTimer((long)current.beaconInterval);
+			}
+		}, delay);
+	}
+
+	/**
+	 * Turns a time into the 8 bytes carried by a beacon
+	 * @param time the time in milliseconds
+	 * @return the time in bytes, most significant first
+	 */
+	private static byte[] timeToBytes(long time){
+		byte[] timeArray = new byte[8]; //8 bytes for the beacon time
+		for(int i = timeArray.length - 1; i >= 0; i--){
+			timeArray[i] = (byte)(time & 0xFF);
+			time = time >>> 8;
+		}
+		return timeArray;
+	}
+
+
+	/**
+	 * Immutable snapshot of the settings commands can change, so reading one never takes a lock
+	 */
+	private static final class Settings {
+		private final boolean slotSelectionFixed; //true if the slot selection is fixed
+		private final boolean beaconsOn; //whether or not beacons are turned on
+		private final double beaconInterval; //the length of time between sending beacons
+		private final int reorderWindowSize; //how many packets past the expected one we hold onto per host
+
+		private Settings(boolean theSlotSelectionFixed, boolean theBeaconsOn, double theBeaconInterval, int theReorderWindowSize){
+			slotSelectionFixed = theSlotSelectionFixed;
+			beaconsOn = theBeaconsOn;
+			beaconInterval = theBeaconInterval;
+			reorderWindowSize = theReorderWindowSize;
+		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,46 @@
+package wifi;
+
+/**
+ * The shared channel a station sends and receives frames on. The link layer only talks to the channel
+ * through this interface, so it can run over the RF layer, a simulated medium, or a test double.
+ * @author Brandon Roberts
+ * @author Nate Olderman
+ */
+public interface Medium {
+	/**
+	 * Sends a frame out on the medium, returning once it has gone out
+	 * @param frame the frame to send
+	 * @return the number of bytes sent
+	 */
+	int transmit(byte[] frame);
+
+	/**
+	 * Blocks until a frame arrives
+	 * @return the frame
+	 */
+	byte[] receive();
+
+	/**
+	 * Checks whether anyone is transmitting on the medium right now
+	 * @return true if the channel is busy
+	 */
+	boolean inUse();
+
+	/**
+	 * Gets the medium's clock, which every station on it shares
+	 * @return the time in milliseconds
+	 */
+	long clock();
+
+	/**
+	 * Gets how long the channel has been idle
+	 * @return the idle time in milliseconds, 0 if it is in use
+	 */
+	long getIdleTime();
+
+	/**
+	 * Checks whether a frame has arrived that receive() would return without blocking
+	 * @return true if a frame is waiting
+	 */
+	boolean dataWaiting();
+}
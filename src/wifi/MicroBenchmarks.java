@@ -0,0 +1,697 @@
+package wifi;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+/**
+ * Command line microbenchmarks for the hot paths of the link layer: frame encoding and decoding, the CRC,
+ * sequence number and reorder work, LocalClock accessors, the receive path, and the output buffers.
+ * Every benchmark is warmed up before it is measured, and reports the time and bytes allocated per operation.
+ * <p>
+ * Run with "java -cp .:../classFiles.jar wifi/MicroBenchmarks [-save file] [-compare file] [groups]" from the
+ * bin directory. Groups (codec, crc, seqnum, reorder, clock, receive, output, circular) pick which benchmarks
+ * run, and all of them run if none are given. -save writes the ns/op of every benchmark to a baseline file,
+ * and -compare prints how far each result is from the one in a baseline file, so a change can be measured
+ * against the numbers from before it. The reference numbers are in src/wifi/benchmark-baseline.properties,
+ * so "-compare ../src/wifi/benchmark-baseline.properties" compares against them.
+ * @author Brandon Roberts
+ * @author Nate Olderman
+ */
+public class MicroBenchmarks {
+	private static final int SEQ_NUM_LIMIT = (1 << 12); //the sequence numbers should never hit 2^12
+	private static final int WARMUP_ROUNDS = 5;
+	private static final int MEASURED_ROUNDS = 10;
+	private static final int FRAMES_PER_ROUND = 1 << 20;
+	private static final int RECEIVED_FRAMES = 200000;
+	private static final int CLOCK_THREADS = 4;
+	private static final int CLOCK_CALLS = 5000000; //per thread
+	private static final int OUTPUT_RING_SIZE = 1 << 18; //same as the GUI's output ring
+	private static final int OUTPUT_BURST_LINES = 3000; //lines of debug output written between polls
+	private static final int MAX_POLL_BYTES = 1 << 16; //same as the GUI's per poll budget
+	private static final int[] PAYLOAD_SIZES = {0, 100, 2038}; //empty, typical, and the largest data a frame can carry
+	private static final int CODEC_BYTES_PER_ROUND = 1 << 24; //frame bytes encoded, decoded or checksummed per round
+	private static final int SEQ_NUM_FRAMES_PER_ROUND = 1 << 18;
+	private static final int CIRCULAR_CHUNK = 4096; //bytes per write and read
+	private static final int CIRCULAR_BYTES_PER_ROUND = 1 << 26;
+
+	private static long sink; //keeps the JIT from throwing away benchmark results
+
+	private static ArrayList<String> groups = new ArrayList<String>(); 	//the groups to run, every group if empty
+	private static Properties baseline = new Properties(); 				//ns/op of an earlier run to compare against
+	private static LinkedHashMap<String, Double> results = new LinkedHashMap<String, Double>(); //ns/op of this run
+
+	/**
+	 * Runs the benchmarks and prints the results
+	 * @param args -save file, -compare file, and the groups to run
+	 */
+	public static void main(String[] args){
+		String saveFile = null;
+		for(int i = 0; i < args.length; i++){
+			if(args[i].equals("-save") && i + 1 < args.length)
+				saveFile = args[++i];
+			else if(args[i].equals("-compare") && i + 1 < args.length)
+				loadBaseline(args[++i]);
+			else
+				groups.add(args[i]);
+		}
+
+		if(selected("codec")){
+			for(int size : PAYLOAD_SIZES)
+				benchmarkEncode(size);
+			for(int size : PAYLOAD_SIZES)
+				benchmarkDecode(size);
+		}
+		if(selected("crc")){
+			for(int size : PAYLOAD_SIZES)
+				benchmarkChecksum(size);
+		}
+		if(selected("seqnum")){
+			benchmarkSeqNum("in order", 0);
+			benchmarkSeqNum("adjacent swaps", 1);
+			benchmarkSeqNum("gap of 7", 7);
+		}
+		if(selected("reorder")){
+			benchmarkReorder("in order", 0);
+			benchmarkReorder("adjacent swaps", 1);
+			benchmarkReorder("gap of 7", 7);
+		}
+		if(selected("clock")){
+			benchmarkClockContention(false);
+			benchmarkClockContention(true);
+		}
+		if(selected("receive")){
+			benchmarkReceiveWithACKs(false);
+			benchmarkReceiveWithACKs(true);
+		}
+		if(selected("output")){
+			benchmarkOutputPoll(false);
+			benchmarkOutputPoll(true);
+		}
+		if(selected("circular"))
+			benchmarkCircularBuffer();
+
+		if(saveFile != null)
+			saveBaseline(saveFile);
+		System.out.println("(sink " + sink + ")");
+		System.exit(0); //the receive pipeline threads never stop on their own
+	}
+
+//----------------------------------------------------------------------------------------------------------//
+//---------------------------------------- Benchmarks ------------------------------------------------------//
+//----------------------------------------------------------------------------------------------------------//
+
+	/**
+	 * Encodes a data frame with Packet.toBytes, which builds the header, copies the data and fills in the CRC
+	 * @param payload the number of data bytes in the frame
+	 */
+	private static void benchmarkEncode(int payload){
+		final Packet packet = new Packet((short)0, (short)1234, (short)2, (short)1, new byte[payload]);
+		final int frames = codecFramesPerRound(payload);
+		measure("encode, " + payload + " byte payload", new Runnable(){
+			public void run(){
+				long total = 0;
+				for(int i = 0; i < frames; i++)
+					total += packet.toBytes().length;
+				sink += total;
+			}
+		}, frames);
+	}
+
+	/**
+	 * Decodes a received data frame with the Packet(byte[]) constructor, which pulls out the header, copies the
+	 * data and checks the CRC
+	 * @param payload the number of data bytes in the frame
+	 */
+	private static void benchmarkDecode(int payload){
+		final byte[] frame = new Packet((short)0, (short)1234, (short)2, (short)1, new byte[payload]).toBytes();
+		final int frames = codecFramesPerRound(payload);
+		measure("decode, " + payload + " byte payload", new Runnable(){
+			public void run(){
+				long total = 0;
+				for(int i = 0; i < frames; i++)
+					total += new Packet(frame).getSeqNum();
+				sink += total;
+			}
+		}, frames);
+	}
+
+	/**
+	 * Checksums a frame the way encoding and decoding do, to show how much of their cost is the CRC
+	 * @param payload the number of data bytes in the frame
+	 */
+	private static void benchmarkChecksum(int payload){
+		final byte[] frame = new Packet((short)0, (short)1234, (short)2, (short)1, new byte[payload]).toBytes();
+		final int frames = codecFramesPerRound(payload);
+		final CRC32 checksum = new CRC32();
+		measure("crc32, " + payload + " byte payload", new Runnable(){
+			public void run(){
+				long total = 0;
+				for(int i = 0; i < frames; i++){
+					checksum.reset();
+					checksum.update(frame, 0, frame.length - 4);
+					total += checksum.getValue();
+				}
+				sink += total;
+			}
+		}, frames);
+	}
+
+	/**
+	 * Feeds decoded data frames through Receiver.processPacket, which does the sequence number check, holds
+	 * back anything past a gap and delivers what is in order, asking for an ACK for each one. The ACKs are
+	 * only queued, and delivered frames go to a subscriber that just counts them.
+	 * @param name the name of the traffic pattern
+	 * @param lag how many packets each held back packet arrives late by, 0 for an in order stream
+	 */
+	private static void benchmarkSeqNum(String name, int lag){
+		short ourMac = 2;
+		final Packet[] arrivals = new Packet[SEQ_NUM_LIMIT];
+		for(int i = 0; i < SEQ_NUM_LIMIT; i++)
+			arrivals[i] = new Packet(new Packet((short)0, (short)i, ourMac, (short)1, new byte[100]).toBytes());
+		delayEveryNth(arrivals, lag);
+
+		Medium medium = new ScriptedMedium(new byte[0][], 0);
+		PrintWriter output = new PrintWriter(new OutputStream(){ //gap messages aren't what is being measured
+			public void write(int b){}
+			public void write(byte[] bytes, int offset, int length){}
+		});
+		LocalClock localClock = new LocalClock(medium, new TimingWheel());
+		AckResponder ackResponder = new AckResponder(medium, ourMac, localClock, output);
+		ReceiveDispatcher dispatcher = new ReceiveDispatcher();
+		final AtomicInteger delivered = new AtomicInteger();
+		dispatcher.subscribe(new Subscription(Subscription.ANY_SOURCE, Subscription.ANY_TYPE, ourMac, new FrameListener(){
+			public void frameReceived(Transmission t){
+				delivered.lazySet(delivered.get() + 1); //only the benchmark thread delivers
+			}
+		}));
+		final Receiver receiver = new Receiver(medium, new ReceiveBuffer(4), ourMac, localClock, output, ackResponder, dispatcher, new OutstandingFrames());
+
+		measure("seqnum, " + name, new Runnable(){
+			public void run(){
+				for(int i = 0; i < SEQ_NUM_FRAMES_PER_ROUND; i++)
+					receiver.processPacket(arrivals[i & (SEQ_NUM_LIMIT - 1)]);
+				sink += delivered.get();
+			}
+		}, SEQ_NUM_FRAMES_PER_ROUND);
+	}
+
+	/**
+	 * Feeds a stream through a ReorderWindow the same way the Receiver does, wrapping the sequence numbers many times
+	 * @param name the name of the traffic pattern
+	 * @param lag how many packets each held back packet arrives late by, 0 for an in order stream
+	 */
+	private static void benchmarkReorder(String name, int lag){
+		//build every packet up front so only the reorder work is measured
+		Packet[] arrivals = new Packet[SEQ_NUM_LIMIT];
+		for(int i = 0; i < SEQ_NUM_LIMIT; i++)
+			arrivals[i] = new Packet((short)0, (short)i, (short)1, (short)2, new byte[1]);
+		delayEveryNth(arrivals, lag);
+
+		ReorderWindow window = new ReorderWindow(8);
+		for(int round = 0; round < WARMUP_ROUNDS; round++)
+			reorderRound(window, arrivals);
+
+		long allocatedBefore = allocatedBytes();
+		long start = System.nanoTime();
+		for(int round = 0; round < MEASURED_ROUNDS; round++)
+			reorderRound(window, arrivals);
+		long elapsed = System.nanoTime() - start;
+		long allocated = allocatedBefore < 0 ? -1 : allocatedBytes() - allocatedBefore;
+
+		report("reorder, " + name, elapsed, allocated, (long)MEASURED_ROUNDS * FRAMES_PER_ROUND);
+	}
+
+	/**
+	 * Runs one round of frames through the window
+	 * @param window the window to feed
+	 * @param arrivals the packets in the order they arrive, replayed until the round is done
+	 */
+	private static void reorderRound(ReorderWindow window, Packet[] arrivals){
+		long delivered = 0;
+		for(int i = 0; i < FRAMES_PER_ROUND; i++){
+			Packet packet = arrivals[i & (SEQ_NUM_LIMIT - 1)];
+			int distance = window.distanceFromExpected(packet.getSeqNum());
+			if(distance == 0){
+				window.advance();
+				delivered++;
+				while(window.pollNext() != null)
+					delivered++;
+			}
+			else if(distance > 0)
+				window.store(packet);
+		}
+		sink += delivered;
+	}
+
+	/**
+	 * Runs a Receiver and its AckResponder over a stream of in order data frames that all need ACKing,
+	 * and measures how fast the Receiver gets through them while the ACKs are going out
+	 * @param pipelined true to run the Receiver behind a ReceivePipeline, false to run it on one thread
+	 */
+	private static void benchmarkReceiveWithACKs(boolean pipelined){
+		short ourMac = 2;
+		byte[][] frames = new byte[SEQ_NUM_LIMIT][];
+		for(int i = 0; i < SEQ_NUM_LIMIT; i++)
+			frames[i] = new Packet((short)0, (short)i, ourMac, (short)1, new byte[100]).toBytes();
+
+		ScriptedMedium medium = new ScriptedMedium(frames, RECEIVED_FRAMES);
+		PrintWriter output = new PrintWriter(new StringWriter());
+		LocalClock localClock = new LocalClock(medium, new TimingWheel());
+		final ReceiveBuffer receiverBuf = new ReceiveBuffer(4);
+		receiverBuf.setPolicy(ReceiveBuffer.DROP_NEWEST); //ACK everything so the responder is kept busy
+		AckResponder ackResponder = new AckResponder(medium, ourMac, localClock, output);
+
+		final AtomicInteger delivered = new AtomicInteger();
+		startDaemon(new Runnable(){ //the layer above, taking whatever the receiver delivers
+			public void run(){
+				while(true){
+					try{
+						receiverBuf.take();
+						delivered.incrementAndGet();
+					} catch(InterruptedException e){
+						System.err.println("Benchmark interrupted!");
+					}
+				}
+			}
+		}, Thread.NORM_PRIORITY);
+		startDaemon(ackResponder, Thread.MAX_PRIORITY);
+
+		long start = System.nanoTime();
+		Receiver receiver = new Receiver(medium, receiverBuf, ourMac, localClock, output, ackResponder, new ReceiveDispatcher(), new OutstandingFrames());
+		ReceivePipeline pipeline = new ReceivePipeline(medium, receiver, 2, localClock.getFrameCapture());
+		if(pipelined)
+			pipeline.start();
+		else
+			startDaemon(receiver, Thread.NORM_PRIORITY);
+		medium.awaitAllReceived();
+		while(pipelined && pipeline.getDispatchMetrics().getCount() < RECEIVED_FRAMES) //the reader finishes before the dispatcher
+			Thread.yield();
+		long elapsed = System.nanoTime() - start;
+
+		report((pipelined ? "pipelined " : "") + "receive while ACKing", elapsed, -1, RECEIVED_FRAMES);
+		System.out.printf("%-45s %10d delivered %10d ACKs%n", "", delivered.get(), medium.getTransmitCount());
+	}
+
+	/**
+	 * Has several threads make the per frame LocalClock calls the Sender, Receiver and LinkLayer make
+	 * (is debug on, backoff count, local time) at once, against either LocalClock or a copy of the
+	 * old fully synchronized accessors for comparison
+	 * @param synchronizedBaseline true to measure the synchronized accessors instead of LocalClock
+	 */
+	private static void benchmarkClockContention(final boolean synchronizedBaseline){
+		final Medium medium = new ScriptedMedium(new byte[0][], 0);
+		final LocalClock localClock = new LocalClock(medium, new TimingWheel());
+		final SynchronizedClock baseline = new SynchronizedClock(medium);
+		final CountDownLatch go = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(CLOCK_THREADS);
+
+		for(int t = 0; t < CLOCK_THREADS; t++){
+			startDaemon(new Runnable(){
+				public void run(){
+					try{
+						go.await();
+					} catch(InterruptedException e){
+						System.err.println("Benchmark interrupted!");
+					}
+
+					long total = 0;
+					for(int i = 0; i < CLOCK_CALLS; i++){
+						if(synchronizedBaseline)
+							total += (baseline.getDebugOn() ? 1 : 0) + baseline.getBackoffCount() + baseline.getLocalTime();
+						else
+							total += (localClock.getDebugOn() ? 1 : 0) + localClock.getBackoffCount() + localClock.getLocalTime();
+					}
+					synchronized(MicroBenchmarks.class){
+						sink += total;
+					}
+					done.countDown();
+				}
+			}, Thread.NORM_PRIORITY);
+		}
+
+		long start = System.nanoTime();
+		go.countDown();
+		try{
+			done.await();
+		} catch(InterruptedException e){
+			System.err.println("Benchmark interrupted!");
+		}
+		long elapsed = System.nanoTime() - start;
+
+		report("clock accessors, " + CLOCK_THREADS + " threads" + (synchronizedBaseline ? " (synchronized)" : ""), elapsed, -1, (long)CLOCK_THREADS * CLOCK_CALLS);
+	}
+
+	/**
+	 * Writes bursts of debug sized lines to the link layer's output stream and measures how fast the GUI's
+	 * poll gets them back out, either the way JavaGUIAdapter does it or the old CircularByteBuffer and
+	 * readLine loop for comparison
+	 * @param oldPoll true to measure the old poll instead of the ByteRing drain
+	 */
+	private static void benchmarkOutputPoll(boolean oldPoll){
+		ByteRing ring = new ByteRing(OUTPUT_RING_SIZE, ByteRing.DROP);
+		CircularByteBuffer cbb = new CircularByteBuffer(CircularByteBuffer.INFINITE_SIZE);
+		BufferedReader reader = new BufferedReader(new InputStreamReader(cbb.getInputStream()));
+		PrintWriter output = new PrintWriter(oldPoll ? cbb.getOutputStream() : ring.getOutputStream(), true);
+		byte[] pollBuffer = new byte[MAX_POLL_BYTES];
+
+		long elapsed = 0;
+		long bytes = 0;
+		for(int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++){
+			for(int i = 0; i < OUTPUT_BURST_LINES; i++)
+				output.println(System.currentTimeMillis() + " Sender: TX DELIVERED Sequence Number: " + (i & 4095) + " to: 201");
+
+			long start = System.nanoTime();
+			long polled = 0;
+			int lines = 0;
+			while(lines < OUTPUT_BURST_LINES){ //poll like the GUI until the whole burst is out
+				byte[] result = oldPoll ? oldPoll(reader) : Arrays.copyOf(pollBuffer, ring.readLines(pollBuffer, 0, MAX_POLL_BYTES));
+				for(int i = 0; i < result.length; i++){
+					if(result[i] == '\n')
+						lines++;
+				}
+				polled += result.length;
+			}
+			if(round >= WARMUP_ROUNDS){
+				elapsed += System.nanoTime() - start;
+				bytes += polled;
+			}
+		}
+
+		report("output poll, " + OUTPUT_BURST_LINES + " line bursts" + (oldPoll ? " (readLine +=)" : ""), elapsed, -1, (long)MEASURED_ROUNDS * OUTPUT_BURST_LINES);
+		System.out.printf("%-45s %10.1f MB/s%n", "", bytes / (elapsed / 1e9) / 1e6);
+	}
+
+	/**
+	 * Writes chunks through a CircularByteBuffer's output stream and reads each back out of its input stream
+	 * on the same thread, which is what moving the link layer's output to the GUI cost before the ByteRing
+	 */
+	private static void benchmarkCircularBuffer(){
+		CircularByteBuffer cbb = new CircularByteBuffer(CIRCULAR_CHUNK * 4);
+		final OutputStream out = cbb.getOutputStream();
+		final InputStream in = cbb.getInputStream();
+		final byte[] written = new byte[CIRCULAR_CHUNK];
+		final byte[] read = new byte[CIRCULAR_CHUNK];
+		final int chunks = CIRCULAR_BYTES_PER_ROUND / CIRCULAR_CHUNK;
+
+		long elapsed = measure("circular buffer, " + CIRCULAR_CHUNK + " byte chunks", new Runnable(){
+			public void run(){
+				try{
+					long total = 0;
+					for(int i = 0; i < chunks; i++){
+						out.write(written, 0, CIRCULAR_CHUNK);
+						int got = 0;
+						while(got < CIRCULAR_CHUNK)
+							got += in.read(read, got, CIRCULAR_CHUNK - got);
+						total += got;
+					}
+					sink += total;
+				} catch(IOException e){
+					System.err.println("Benchmark failed: " + e.getMessage());
+				}
+			}
+		}, chunks);
+		System.out.printf("%-45s %10.1f MB/s%n", "", (double)MEASURED_ROUNDS * CIRCULAR_BYTES_PER_ROUND / (elapsed / 1e9) / 1e6);
+	}
+
+	/**
+	 * The GUI poll as it was before the ByteRing drain
+	 * @param reader the reader around the CircularByteBuffer
+	 * @return the bytes of every line waiting
+	 */
+	private static byte[] oldPoll(BufferedReader reader){
+		String msg = "";
+		try {
+			while(reader.ready())
+				msg += reader.readLine() + "\n";
+		} catch(IOException e){
+			System.err.println("Benchmark read failed!");
+		}
+		return msg.getBytes();
+	}
+
+//----------------------------------------------------------------------------------------------------------//
+//---------------------------------------- Helper Methods --------------------------------------------------//
+//----------------------------------------------------------------------------------------------------------//
+
+	/**
+	 * Runs a round of a benchmark enough times to warm it up, then measures the time and allocation of more rounds
+	 * @param name the name of the benchmark
+	 * @param round one round of the benchmark
+	 * @param operationsPerRound the number of operations in each round
+	 * @return the time the measured rounds took in nanoseconds
+	 */
+	private static long measure(String name, Runnable round, long operationsPerRound){
+		for(int i = 0; i < WARMUP_ROUNDS; i++)
+			round.run();
+
+		long allocatedBefore = allocatedBytes();
+		long start = System.nanoTime();
+		for(int i = 0; i < MEASURED_ROUNDS; i++)
+			round.run();
+		long elapsed = System.nanoTime() - start;
+		long allocated = allocatedBefore < 0 ? -1 : allocatedBytes() - allocatedBefore;
+
+		report(name, elapsed, allocated, MEASURED_ROUNDS * operationsPerRound);
+		return elapsed;
+	}
+
+	/**
+	 * Prints the per operation cost of a benchmark, and how it compares to the baseline if there is one
+	 * @param name the name of the benchmark
+	 * @param elapsedNanos the time it took
+	 * @param allocatedBytes the bytes allocated by this thread while it ran, -1 if unknown
+	 * @param operations the number of operations it did
+	 */
+	private static void report(String name, long elapsedNanos, long allocatedBytes, long operations){
+		double nanosPerOp = (double)elapsedNanos / operations;
+		results.put(name, nanosPerOp);
+
+		String comparison = "";
+		String before = baseline.getProperty(name);
+		if(before != null){
+			double baselineNanos = Double.parseDouble(before);
+			comparison = String.format(" %+8.1f%% vs %.1f", (nanosPerOp - baselineNanos) * 100 / baselineNanos, baselineNanos);
+		}
+
+		System.out.printf("%-45s %10.1f ns/op %14.0f ops/s %10s bytes/op%s%n", name,
+				nanosPerOp, operations * 1e9 / elapsedNanos,
+				allocatedBytes < 0 ? "?" : String.format("%.2f", (double)allocatedBytes / operations), comparison);
+	}
+
+	/**
+	 * Checks whether a group of benchmarks was asked for
+	 * @param group the group's name
+	 * @return true if no groups were given or this one was
+	 */
+	private static boolean selected(String group){
+		return groups.isEmpty() || groups.contains(group);
+	}
+
+	/**
+	 * Reads the ns/op of an earlier run to compare against
+	 * @param fileName the baseline file written by -save
+	 */
+	private static void loadBaseline(String fileName){
+		try{
+			FileInputStream in = new FileInputStream(fileName);
+			try{
+				baseline.load(in);
+			} finally{
+				in.close();
+			}
+		} catch(IOException e){
+			System.err.println("Couldn't read baseline " + fileName + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Writes the ns/op of every benchmark run to a baseline file, keeping the ones in it that weren't run
+	 * @param fileName the file to write
+	 */
+	private static void saveBaseline(String fileName){
+		Properties saved = new Properties();
+		saved.putAll(baseline);
+		for(Map.Entry<String, Double> result : results.entrySet())
+			saved.setProperty(result.getKey(), String.format(Locale.ROOT, "%.2f", result.getValue())); //read back with parseDouble
+
+		try{
+			FileOutputStream out = new FileOutputStream(fileName);
+			try{
+				saved.store(out, "MicroBenchmarks ns/op, " + System.getProperty("java.vm.name") + " " + System.getProperty("java.version") +
+						", " + Runtime.getRuntime().availableProcessors() + " processors");
+			} finally{
+				out.close();
+			}
+			System.out.println("Saved " + results.size() + " results to " + fileName);
+		} catch(IOException e){
+			System.err.println("Couldn't write baseline " + fileName + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Moves every (lag+1)th packet to after the lag packets following it, so it arrives late
+	 * @param arrivals the packets in order, rearranged in place
+	 * @param lag how many packets each held back packet arrives late by, 0 to leave them in order
+	 */
+	private static void delayEveryNth(Packet[] arrivals, int lag){
+		if(lag == 0)
+			return;
+		for(int i = 0; i + lag < arrivals.length; i += lag + 1){
+			Packet late = arrivals[i];
+			System.arraycopy(arrivals, i + 1, arrivals, i, lag);
+			arrivals[i + lag] = late;
+		}
+	}
+
+	/**
+	 * Gets how many frames to put through the codec per round, so every payload size moves about the same bytes
+	 * @param payload the number of data bytes in each frame
+	 * @return the frames per round
+	 */
+	private static int codecFramesPerRound(int payload){
+		return CODEC_BYTES_PER_ROUND / (payload + 10);
+	}
+
+	/**
+	 * Starts a background thread that won't keep the benchmarks from exiting
+	 * @param task what the thread runs
+	 * @param priority the thread priority
+	 */
+	private static void startDaemon(Runnable task, int priority){
+		Thread thread = new Thread(task);
+		thread.setDaemon(true);
+		thread.setPriority(priority);
+		thread.start();
+	}
+
+	/**
+	 * Gets the total bytes this thread has allocated, if the JVM can tell us
+	 * @return the bytes allocated so far, or -1 if the JVM doesn't support it
+	 */
+	private static long allocatedBytes(){
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+
+	/**
+	 * Medium that hands out recorded frames as fast as they are asked for, with an idle channel
+	 */
+	private static class ScriptedMedium implements Medium {
+		private byte[][] frames;
+		private int framesReceived;
+		private int totalFrames;
+		private AtomicInteger transmitCount;
+		private CountDownLatch allReceived; //counted down once the receiver comes back for more after the last frame
+
+		/**
+		 * Makes a medium that receives the given frames over and over
+		 * @param theFrames the frames to receive, in order
+		 * @param theTotalFrames how many frames to receive before blocking forever
+		 */
+		public ScriptedMedium(byte[][] theFrames, int theTotalFrames){
+			frames = theFrames;
+			totalFrames = theTotalFrames;
+			transmitCount = new AtomicInteger();
+			allReceived = new CountDownLatch(1);
+		}
+
+		public byte[] receive(){
+			if(framesReceived == totalFrames){
+				allReceived.countDown();
+				while(true){
+					try{
+						Thread.sleep(Long.MAX_VALUE);
+					} catch(InterruptedException e){
+						//nothing left to receive
+					}
+				}
+			}
+			return frames[framesReceived++ % frames.length];
+		}
+
+		public int transmit(byte[] frame){
+			transmitCount.incrementAndGet();
+			return frame.length;
+		}
+
+		public boolean inUse(){
+			return false;
+		}
+
+		public boolean dataWaiting(){
+			return framesReceived < totalFrames;
+		}
+
+		public long clock(){
+			return System.currentTimeMillis();
+		}
+
+		public long getIdleTime(){
+			return 0;
+		}
+
+		/**
+		 * Blocks until every frame has been received and dealt with
+		 */
+		public void awaitAllReceived(){
+			try{
+				allReceived.await();
+			} catch(InterruptedException e){
+				System.err.println("Benchmark interrupted!");
+			}
+		}
+
+		/**
+		 * Gets how many frames have been transmitted
+		 * @return the number of transmitted frames
+		 */
+		public int getTransmitCount(){
+			return transmitCount.get();
+		}
+	}
+
+	/**
+	 * The LocalClock accessors the way they were before, every one synchronized, to compare against
+	 */
+	private static class SynchronizedClock {
+		private Medium medium;
+		private long clockOffset;
+		private boolean debugOn;
+		private int backoffCount;
+
+		public SynchronizedClock(Medium theMedium){
+			medium = theMedium;
+		}
+
+		public synchronized boolean getDebugOn(){
+			return debugOn;
+		}
+
+		public synchronized int getBackoffCount(){
+			return backoffCount;
+		}
+
+		public synchronized long getLocalTime(){
+			return clockOffset + medium.clock();
+		}
+	}
+}
@@ -0,0 +1,269 @@
+package wifi;
+
+import java.util.Arrays;
+
+/**
+ * Index of the frames we have transmitted and are waiting to have ACKed, keyed by destination address
+ * and sequence number packed into one int. It is an open addressed hash table so the Receiver can match
+ * an ACK in constant time without boxing, no matter how many frames are in flight or what order they are in.
+ * The last few frames removed after being ACKed stay in the table as tombstones, so an ACK that comes after
+ * its frame is gone is still told apart as a duplicate rather than late by the same single lookup.
+ * @author Brandon Roberts
+ * @author Nate Olderman
+ */
+public class OutstandingFrames {
+	private static final int INITIAL_CAPACITY = 16; //must be a power of two
+	private static final int EMPTY = -1; //no key packs to a negative number
+	private static final int RECENTLY_ACKED_LIMIT = 64; //tombstones kept before the oldest is taken out
+
+	/**
+	 * The ACK matched a frame we were waiting on
+	 */
+	public static final int MATCHED = 0;
+
+	/**
+	 * The ACK was for a frame that was already ACKed
+	 */
+	public static final int DUPLICATE = 1;
+
+	/**
+	 * The ACK was for a frame we gave up on, or never sent
+	 */
+	public static final int LATE = 2;
+
+	private int[] keys;
+	private Packet[] frames; 		//null in a tombstone, a slot whose frame was removed after being ACKed
+	private long[] ackedAt; 		//which tombstone a slot became, so an old one isn't mistaken for a newer one
+	private int size; 				//slots in use, tombstones included
+	private int tombstoneCount;
+
+	private int[] tombstoneKeys; 		//the last tombstones made, the oldest overwritten first
+	private long[] tombstoneStamps; 	//the ackedAt of each one
+	private int tombstoneIndex; 		//where the next one goes
+	private long tombstonesMade;
+
+	private long matchedCount;
+	private long duplicateCount;
+	private long lateCount;
+
+	/**
+	 * Makes a new empty index
+	 */
+	public OutstandingFrames(){
+		keys = new int[INITIAL_CAPACITY];
+		frames = new Packet[INITIAL_CAPACITY];
+		ackedAt = new long[INITIAL_CAPACITY];
+		Arrays.fill(keys, EMPTY);
+		tombstoneKeys = new int[RECENTLY_ACKED_LIMIT];
+		tombstoneStamps = new long[RECENTLY_ACKED_LIMIT];
+		Arrays.fill(tombstoneKeys, EMPTY);
+	}
+
+	/**
+	 * Adds a frame that was just transmitted (again adding it if it was retransmitted)
+	 * @param packet the frame waiting on an ACK
+	 */
+	public synchronized void add(Packet packet){
+		if((size + 1) * 2 > keys.length) //keep it at most half full so probes stay short
+			grow();
+
+		int key = key(packet.getDestAddr(), packet.getSeqNum());
+		int slot = find(key);
+		if(keys[slot] == EMPTY){
+			keys[slot] = key;
+			size++;
+		}
+		else if(frames[slot] == null) //the sequence number came back around, so ACKs for it are for this frame now
+			tombstoneCount--;
+		frames[slot] = packet;
+	}
+
+	/**
+	 * Removes a frame we are done waiting on, because it was ACKed or we gave up on it
+	 * @param packet the frame to remove
+	 */
+	public synchronized void remove(Packet packet){
+		int key = key(packet.getDestAddr(), packet.getSeqNum());
+		int slot = find(key);
+		if(keys[slot] == EMPTY || frames[slot] != packet)
+			return;
+
+		if(packet.isAcked()){ //leave a tombstone so a repeat of its ACK counts as a duplicate
+			frames[slot] = null;
+			ackedAt[slot] = tombstonesMade;
+			tombstoneCount++;
+			expireTombstone(tombstoneKeys[tombstoneIndex], tombstoneStamps[tombstoneIndex]);
+			tombstoneKeys[tombstoneIndex] = key;
+			tombstoneStamps[tombstoneIndex] = tombstonesMade++;
+			tombstoneIndex = (tombstoneIndex + 1) % RECENTLY_ACKED_LIMIT;
+		}
+		else
+			delete(slot);
+	}
+
+	/**
+	 * Matches an ACK to the frame it is for and marks that frame ACKed
+	 * @param srcAddr the host the ACK came from, the destination of the frame it is for
+	 * @param seqNum the sequence number being ACKed
+	 * @return MATCHED, DUPLICATE or LATE
+	 */
+	public synchronized int acknowledge(short srcAddr, short seqNum){
+		int slot = find(key(srcAddr, seqNum));
+		if(keys[slot] == EMPTY){
+			lateCount++;
+			return LATE;
+		}
+		if(frames[slot] == null || frames[slot].isAcked()){ //a tombstone means it was ACKed and removed
+			duplicateCount++;
+			return DUPLICATE;
+		}
+
+		frames[slot].setAsAcked(); //tell sender that that packet was ACKed
+		matchedCount++;
+		return MATCHED;
+	}
+
+	/**
+	 * Gets the number of frames waiting on an ACK
+	 * @return the number of outstanding frames
+	 */
+	public synchronized int size(){
+		return size - tombstoneCount;
+	}
+
+	/**
+	 * Describes the ACK counters for display
+	 * @return the counters as a string
+	 */
+	public synchronized String toString(){
+		return "Outstanding: " + (size - tombstoneCount) + " | Matched ACKs: " + matchedCount + " | Duplicate ACKs: " + duplicateCount + " | Late ACKs: " + lateCount;
+	}
+
+
+//---------------------------------------------------------------------------------------------------//
+//---------------------------------------- Getters --------------------------------------------------//
+//---------------------------------------------------------------------------------------------------//
+
+	/**
+	 * Gets the number of ACKs that matched a frame we were waiting on
+	 * @return the matched count
+	 */
+	public synchronized long getMatchedCount(){
+		return matchedCount;
+	}
+
+	/**
+	 * Gets the number of ACKs for frames that were already ACKed
+	 * @return the duplicate count
+	 */
+	public synchronized long getDuplicateCount(){
+		return duplicateCount;
+	}
+
+	/**
+	 * Gets the number of ACKs for frames we were no longer waiting on
+	 * @return the late count
+	 */
+	public synchronized long getLateCount(){
+		return lateCount;
+	}
+
+
+//----------------------------------------------------------------------------------------------------------//
+//---------------------------------------- Helper Methods --------------------------------------------------//
+//----------------------------------------------------------------------------------------------------------//
+
+	/**
+	 * Packs an address and sequence number into a key
+	 * @param addr the destination address of the frame
+	 * @param seqNum the 12 bit sequence number of the frame
+	 * @return the key
+	 */
+	private static int key(short addr, short seqNum){
+		return ((addr & 0xFFFF) << 12) | (seqNum & 0xFFF);
+	}
+
+	/**
+	 * Gets the slot a key would be in if nothing collided with it
+	 * @param key the key
+	 * @return the home slot
+	 */
+	private int home(int key){
+		int hash = key * 0x9E3779B9; //spread sequential seqNums across the table
+		return (hash ^ (hash >>> 16)) & (keys.length - 1);
+	}
+
+	/**
+	 * Finds the slot holding a key, or the empty slot it would go in
+	 * @param key the key to find
+	 * @return the slot
+	 */
+	private int find(int key){
+		int mask = keys.length - 1;
+		int slot = home(key);
+		while(keys[slot] != EMPTY && keys[slot] != key)
+			slot = (slot + 1) & mask;
+		return slot;
+	}
+
+	/**
+	 * Empties a slot, shifting the entries after it back so every key can still be reached from its home slot
+	 * @param slot the slot to empty
+	 */
+	private void delete(int slot){
+		int mask = keys.length - 1;
+		int hole = slot;
+		int next = (hole + 1) & mask;
+		while(keys[next] != EMPTY){
+			int home = home(keys[next]);
+			if(((next - home) & mask) >= ((next - hole) & mask)){ //the entry at next can move into the hole
+				keys[hole] = keys[next];
+				frames[hole] = frames[next];
+				ackedAt[hole] = ackedAt[next];
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		keys[hole] = EMPTY;
+		frames[hole] = null;
+		size--;
+	}
+
+	/**
+	 * Takes a tombstone out of the table, unless its key has been sent again or made into a newer tombstone since
+	 * @param key the tombstone's key, or EMPTY if there wasn't one
+	 * @param stamp the ackedAt it was made with
+	 */
+	private void expireTombstone(int key, long stamp){
+		if(key == EMPTY)
+			return;
+		int slot = find(key);
+		if(keys[slot] == key && frames[slot] == null && ackedAt[slot] == stamp){
+			delete(slot);
+			tombstoneCount--;
+		}
+	}
+
+	/**
+	 * Doubles the size of the table
+	 */
+	private void grow(){
+		int[] oldKeys = keys;
+		Packet[] oldFrames = frames;
+		long[] oldAckedAt = ackedAt;
+
+		keys = new int[oldKeys.length * 2];
+		frames = new Packet[oldKeys.length * 2];
+		ackedAt = new long[oldKeys.length * 2];
+		Arrays.fill(keys, EMPTY);
+
+		for(int i = 0; i < oldKeys.length; i++){
+			if(oldKeys[i] != EMPTY){
+				int slot = find(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				frames[slot] = oldFrames[i];
+				ackedAt[slot] = oldAckedAt[i];
+			}
+		}
+	}
+}
@@ -1,6 +1,5 @@
 package wifi;
 
-import java.util.Arrays;
 import java.util.zip.CRC32;
 
 /**
@@ -18,7 +17,7 @@ public class Packet {
 	private short srcAddr; //source address for packet
 	
 	private byte[] data; //packet's data only, without frame
-	private byte[] packet; //the packet in it's entirety
+	private byte[] packet; //the packet in it's entirety (received frame, or the encoded frame once it has been built for sending)
 	
 	private boolean isACKed; //if this packet has been ACKed
 	
@@ -27,6 +26,8 @@ public class Packet {
 	private CRC32 checksum;
 	private boolean corrupted;
 
+	private long receivedNanos; //System.nanoTime when the frame came off the RF layer, 0 if it wasn't received
+
 	
 	/**
 	 * Compiles the packet from the various information that makes up the packet
@@ -63,7 +64,7 @@ public class Packet {
 		frameType >>= 1;										//shift over to get rid of retry bit
 
 		//sequence number
-		seqNum = (short) (((recvPacket[0] & 0xF) << 8 ) + (recvPacket[1] & 0xFFF)); //pull out sequence number//pull out sequence number ************Getting wrong value right now
+		seqNum = (short) (((recvPacket[0] & 0xF) << 8 ) + (recvPacket[1] & 0xFF)); //pull out sequence number
 
 		//destination bytes 
 		destAddr = (short) (((recvPacket[2] & 0xFF) << 8) + (recvPacket[3] & 0xFF));
@@ -132,6 +133,25 @@ public class Packet {
 
 		return buffer;
 	}
+
+	/**
+	 * Gets the frame ready to hand to the RF layer, encoding it only if it hasn't been encoded yet
+	 * FOR SENDING ONLY
+	 * @return the byte array representing the frame to transmit
+	 */
+	public synchronized byte[] getFrameBytes(){
+		if(packet == null)
+			packet = toBytes();
+		return packet;
+	}
+
+	/**
+	 * Gets whether the frame has already been encoded and is ready to transmit
+	 * @return true if the encoded frame is cached
+	 */
+	public synchronized boolean isEncoded(){
+		return packet != null;
+	}
 	
 	
 	/**
@@ -139,7 +159,7 @@ public class Packet {
 	 * @return a string representation of this packet
 	 */
 	public synchronized String toString(){
-		return ("FrameType: " + frameType + " | Retry: " + retry + " | Sequence Number: " + seqNum + " | Destination Address: " + destAddr + " | Source Address: " + srcAddr + " | Data: " + Arrays.toString(data));
+		return ("FrameType: " + frameType + " | Retry: " + retry + " | Sequence Number: " + seqNum + " | Destination Address: " + destAddr + " | Source Address: " + srcAddr + " | Data: " + data.length + " bytes");
 	}
 	
 
@@ -212,6 +232,14 @@ public class Packet {
 		return corrupted;
 	}
 
+	/**
+	* Gets when the packet came off the RF layer
+	* @return the System.nanoTime it was received at, 0 if it wasn't received
+	*/
+	public synchronized long getReceivedNanos(){
+		return receivedNanos;
+	}
+
 	/**
 	* Gets the number of sending retry attempts this packet has done
 	* @return the number of retry attempts
@@ -232,6 +260,7 @@ public class Packet {
 	public synchronized void retry(){
 		retry = 1;
 		retryAttempts++;
+		packet = null; //the retry bit changed so the encoded frame is stale
 	}
 
 	/**
@@ -240,13 +269,32 @@ public class Packet {
 	 */
 	public synchronized void setAsAcked(){
 		isACKed = true;
+		notifyAll(); //wake the Sender waiting on this ACK
 	}
 	
+	/**
+	 * Sets when the packet came off the RF layer
+	 * @param nanos the System.nanoTime it was received at
+	 */
+	public synchronized void setReceivedNanos(long nanos){
+		receivedNanos = nanos;
+	}
+
+	/**
+	 * Replaces the data this packet carries
+	 * @param theData the new data
+	 */
+	public synchronized void setDataBuf(byte[] theData){
+		data = theData;
+		packet = null; //the data changed so the encoded frame is stale
+	}
+
 	/**
 	 * Sets the sequence number of this packet
 	 * @param sequenceNum - the sequence number to set this packet to
 	 */
 	public synchronized void setSeqNum(short sequenceNum){
 		seqNum = sequenceNum;
+		packet = null; //the sequence number changed so the encoded frame is stale
 	}
 }
\ No newline at end of file
@@ -0,0 +1,103 @@
+package wifi;
+
+/**
+ * Tracks how far one peer's clock is from our RF clock using the beacons it sends. Each beacon gives a
+ * noisy sample of the offset; an alpha-beta filter smooths them into an offset and a drift rate, so the
+ * offset can be predicted between beacons, and the residuals give the sync error for that peer.
+ * @author Brandon Roberts
+ * @author Nate Olderman
+ */
+public class PeerClockSync {
+	private static final double OFFSET_GAIN = 0.5; 		//how much of each surprise goes into the offset
+	private static final double DRIFT_GAIN = 0.1; 		//how much of each surprise goes into the drift rate
+	private static final double ERROR_SMOOTHING = 0.125; //weight of the newest sample in the mean error
+
+	private short peer;
+	private long sampleCount;
+
+	private double offset; 		//peer time minus our RF clock, in milliseconds, as of the last sample
+	private double drift; 		//how fast the offset changes, in milliseconds per millisecond
+	private double lastSampleTime; //our RF clock at the last sample
+
+	private double lastError; 	//how far the last sample was from the prediction
+	private double meanError; 	//smoothed absolute error
+	private double maxError; 	//largest absolute error after the first two samples
+
+	/**
+	 * Makes a new PeerClockSync with no samples
+	 * @param thePeer the MAC address of the peer
+	 */
+	public PeerClockSync(short thePeer){
+		peer = thePeer;
+	}
+
+	/**
+	 * Adds a sample from a beacon
+	 * @param measuredOffset the peer's time when the beacon arrived minus our RF clock at the same moment, in milliseconds
+	 * @param now our RF clock when the beacon arrived, in milliseconds
+	 */
+	public synchronized void addSample(double measuredOffset, double now){
+		sampleCount++;
+		if(sampleCount == 1){
+			offset = measuredOffset;
+			lastSampleTime = now;
+			return;
+		}
+
+		double elapsed = now - lastSampleTime;
+		double predicted = offset + drift * elapsed;
+		double residual = measuredOffset - predicted;
+
+		offset = predicted + OFFSET_GAIN * residual;
+		if(elapsed > 0)
+			drift += DRIFT_GAIN * residual / elapsed;
+		lastSampleTime = now;
+
+		lastError = residual;
+		meanError += ERROR_SMOOTHING * (Math.abs(residual) - meanError);
+		if(sampleCount > 2) //the drift estimate needs two samples before the error means anything
+			maxError = Math.max(maxError, Math.abs(residual));
+	}
+
+	/**
+	 * Predicts the offset between the peer's clock and our RF clock
+	 * @param now our RF clock, in milliseconds
+	 * @return the peer time minus our RF clock, in milliseconds
+	 */
+	public synchronized double predictOffset(double now){
+		return offset + drift * (now - lastSampleTime);
+	}
+
+	/**
+	 * Gets the number of beacons heard from this peer
+	 * @return the sample count
+	 */
+	public synchronized long getSampleCount(){
+		return sampleCount;
+	}
+
+	/**
+	 * Gets the smoothed absolute difference between what the beacons said and what we predicted
+	 * @return the mean sync error in milliseconds
+	 */
+	public synchronized double getMeanError(){
+		return meanError;
+	}
+
+	/**
+	 * Gets the largest difference between what a beacon said and what we predicted
+	 * @return the max sync error in milliseconds
+	 */
+	public synchronized double getMaxError(){
+		return maxError;
+	}
+
+	/**
+	 * Describes the sync with this peer for display
+	 * @return the sync state as a string
+	 */
+	public synchronized String toString(){
+		return String.format("Peer %d: %d beacons | offset %.2f ms | drift %.1f ppm | last error %.2f ms | mean error %.2f ms | max error %.2f ms",
+				peer, sampleCount, offset, drift * 1e6, lastError, meanError, maxError);
+	}
+}
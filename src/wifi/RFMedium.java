@@ -0,0 +1,62 @@
+package wifi;
+
+import java.io.PrintWriter;
+
+import rf.RF;
+
+/**
+ * The default medium: the RF layer, which sends frames as UDP broadcasts to every station on the network
+ * @author Brandon Roberts
+ * @author Nate Olderman
+ */
+public class RFMedium implements Medium {
+	private RF rf;
+
+	/**
+	 * Makes a new RFMedium on a new RF layer
+	 * @param output the output the RF layer writes to
+	 */
+	public RFMedium(PrintWriter output){
+		this(new RF(output, null));
+	}
+
+	/**
+	 * Makes a new RFMedium on an RF layer that already exists
+	 * @param theRF the RF layer
+	 */
+	public RFMedium(RF theRF){
+		rf = theRF;
+	}
+
+	public int transmit(byte[] frame){
+		return rf.transmit(frame);
+	}
+
+	public byte[] receive(){
+		return rf.receive();
+	}
+
+	public boolean inUse(){
+		return rf.inUse();
+	}
+
+	public long clock(){
+		return rf.clock();
+	}
+
+	public long getIdleTime(){
+		return rf.getIdleTime();
+	}
+
+	public boolean dataWaiting(){
+		return rf.dataWaiting();
+	}
+
+	/**
+	 * Gets the RF layer underneath
+	 * @return the RF layer
+	 */
+	public RF getRF(){
+		return rf;
+	}
+}
@@ -0,0 +1,14 @@
+package wifi;
+
+/**
+ * Callback for a {@link LinkLayer} that has packets ready to be received
+ * @author Brandon Roberts
+ * @author Nate Olderman
+ */
+public interface ReadinessListener {
+	/**
+	 * Called on the Receiver thread every time a packet is ready, so it should return quickly
+	 * @param linkLayer the link layer the packet can be received from
+	 */
+	void receiveReady(LinkLayer linkLayer);
+}
@@ -0,0 +1,354 @@
+package wifi;
+
+import java.util.Collection;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * The bounded buffer of received packets waiting for the layer above, with a configurable policy
+ * for what happens when it is full and counters for every packet that policy costs us.
+ * @author Brandon Roberts
+ * @author Nate Olderman
+ */
+public class ReceiveBuffer {
+	/**
+	 * ACK the new packet but throw it away
+	 */
+	public static final int DROP_NEWEST = 0;
+
+	/**
+	 * ACK the new packet and throw away the oldest one waiting to make room
+	 */
+	public static final int DROP_OLDEST = 1;
+
+	/**
+	 * ACK the new packet and wait a little while for room, dropping it if none opens up
+	 */
+	public static final int BLOCK = 2;
+
+	/**
+	 * Don't ACK the new packet so the sender backs off and retries it later
+	 */
+	public static final int WITHHOLD_ACK = 3;
+
+	private static final long BLOCK_WAIT = 50; //how long to wait for room under the BLOCK policy in milliseconds
+
+	private ArrayBlockingQueue<Packet> packets;
+	private int capacity;
+	private volatile int policy;
+
+	private AtomicLong deliveredCount;
+	private AtomicLong droppedNewestCount;
+	private AtomicLong droppedOldestCount;
+	private AtomicLong blockedCount; 		//times we had to wait for room
+	private AtomicLong blockTimeoutCount; 	//times waiting for room didn't work
+	private AtomicLong withheldACKCount;
+	private AtomicInteger highWaterMark; 	//the most packets that have been waiting at once
+
+	private volatile Runnable readyHook; 	//run every time a packet is added, null for none
+
+	private VirtualClock virtualClock; 				//waits happen on this instead of in real time, null for real time
+	private VirtualClock.Condition hasPacket; 		//the virtual time version of waiting for a packet
+	private VirtualClock.Condition hasRoom; 		//the virtual time version of waiting for room
+
+	/**
+	 * Makes a new empty ReceiveBuffer that withholds ACKs when it is full
+	 * @param theCapacity the number of packets it holds
+	 */
+	public ReceiveBuffer(int theCapacity){
+		this(theCapacity, null);
+	}
+
+	/**
+	 * Makes a new empty ReceiveBuffer that withholds ACKs when it is full, and may wait in virtual time. In virtual
+	 * time every wait is on the clock, so only its participants can call the methods that wait.
+	 * @param theCapacity the number of packets it holds
+	 * @param theVirtualClock the virtual clock to wait on, or null for real time
+	 */
+	public ReceiveBuffer(int theCapacity, VirtualClock theVirtualClock){
+		capacity = theCapacity;
+		packets = new ArrayBlockingQueue<Packet>(capacity);
+		policy = WITHHOLD_ACK;
+
+		deliveredCount = new AtomicLong();
+		droppedNewestCount = new AtomicLong();
+		droppedOldestCount = new AtomicLong();
+		blockedCount = new AtomicLong();
+		blockTimeoutCount = new AtomicLong();
+		withheldACKCount = new AtomicLong();
+		highWaterMark = new AtomicInteger();
+
+		virtualClock = theVirtualClock;
+		hasPacket = new VirtualClock.Condition(){
+			public boolean isMet(){
+				return !packets.isEmpty();
+			}
+		};
+		hasRoom = new VirtualClock.Condition(){
+			public boolean isMet(){
+				return packets.remainingCapacity() > 0;
+			}
+		};
+	}
+
+	/**
+	 * Checks whether a new data packet should go without an ACK because there is no room for it,
+	 * counting it if so
+	 * @return true if the packet should be ignored and not ACKed
+	 */
+	public boolean withholdACK(){
+		if(policy != WITHHOLD_ACK || packets.remainingCapacity() > 0)
+			return false;
+
+		withheldACKCount.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Checks whether a packet we haven't ACKed yet, such as one held in a reorder window, should stay where it is
+	 * instead of going into a full buffer. Its sender will retry it, so under BLOCK and WITHHOLD_ACK it is better
+	 * kept than dropped, while the drop policies are free to drop it.
+	 * @return true if the buffer is full and the policy doesn't drop
+	 */
+	public boolean holdBack(){
+		int current = policy;
+		return (current == BLOCK || current == WITHHOLD_ACK) && packets.remainingCapacity() == 0;
+	}
+
+	/**
+	 * Puts a packet in the buffer, applying the overflow policy if it is full.
+	 * Unicast packets that get here have already been ACKed, so under WITHHOLD_ACK they wait for room as long as it takes.
+	 * @param packet the packet to add
+	 * @return true if the packet was added
+	 */
+	public boolean offer(Packet packet){
+		boolean added = packets.offer(packet);
+
+		if(!added){
+			if(policy == DROP_NEWEST)
+				droppedNewestCount.incrementAndGet();
+
+			else if(policy == DROP_OLDEST){
+				while(!added){ //the layer above may take it before we do, so just keep trying
+					if(packets.poll() != null)
+						droppedOldestCount.incrementAndGet();
+					added = packets.offer(packet);
+				}
+			}
+
+			else{
+				blockedCount.incrementAndGet();
+				boolean waitForever = (policy == WITHHOLD_ACK && packet.getDestAddr() != -1); //ACKed because withholdACK said there was room, so never dropped
+				try{
+					if(virtualClock != null){
+						if(waitForever)
+							virtualClock.await(hasRoom);
+						else
+							virtualClock.await(hasRoom, BLOCK_WAIT);
+						added = packets.offer(packet);
+					}
+					else if(waitForever){
+						packets.put(packet);
+						added = true;
+					}
+					else
+						added = packets.offer(packet, BLOCK_WAIT, TimeUnit.MILLISECONDS);
+				} catch(InterruptedException e){
+					//fall through and count it as dropped
+				}
+				if(!added){
+					blockTimeoutCount.incrementAndGet();
+					droppedNewestCount.incrementAndGet();
+				}
+			}
+		}
+
+		if(added){
+			deliveredCount.incrementAndGet();
+			int depth = packets.size();
+			int mark;
+			while(depth > (mark = highWaterMark.get()) && !highWaterMark.compareAndSet(mark, depth));
+
+			Runnable hook = readyHook;
+			if(hook != null)
+				hook.run();
+		}
+		return added;
+	}
+
+	/**
+	 * Blocks until a packet is waiting then takes it
+	 * @return the oldest waiting packet
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public Packet take() throws InterruptedException{
+		if(virtualClock != null){
+			Packet packet;
+			while((packet = packets.poll()) == null) //another participant may have taken it first
+				virtualClock.await(hasPacket);
+			return packet;
+		}
+		return packets.take();
+	}
+
+	/**
+	 * Waits up to the given time for a packet then takes it
+	 * @param timeout how long to wait in milliseconds, 0 to not wait at all
+	 * @return the oldest waiting packet, or null if none arrived in time
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public Packet poll(long timeout) throws InterruptedException{
+		if(virtualClock != null){
+			if(timeout > 0)
+				virtualClock.await(hasPacket, timeout);
+			return packets.poll();
+		}
+		return packets.poll(timeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Takes every waiting packet, up to a limit, in one go
+	 * @param drained the list to add the packets to
+	 * @param max the most packets to take
+	 * @return the number of packets taken
+	 */
+	public int drainTo(Collection<Packet> drained, int max){
+		return packets.drainTo(drained, max);
+	}
+
+	/**
+	 * Gets the number of packets waiting
+	 * @return the number of packets in the buffer
+	 */
+	public int size(){
+		return packets.size();
+	}
+
+	/**
+	 * Describes the policy and counters for display
+	 * @return the stats as a string
+	 */
+	public String toString(){
+		return "Policy: " + policyName(policy) + " | Capacity: " + capacity + " | High water mark: " + highWaterMark.get() +
+				" | Delivered: " + deliveredCount.get() + " | Dropped newest: " + droppedNewestCount.get() +
+				" | Dropped oldest: " + droppedOldestCount.get() + " | Blocked: " + blockedCount.get() +
+				" | Block timeouts: " + blockTimeoutCount.get() + " | Withheld ACKs: " + withheldACKCount.get();
+	}
+
+	/**
+	 * Gets the name of an overflow policy
+	 * @param thePolicy the policy
+	 * @return the name of the policy
+	 */
+	public static String policyName(int thePolicy){
+		switch(thePolicy){
+			case DROP_NEWEST: return "drop newest";
+			case DROP_OLDEST: return "drop oldest";
+			case BLOCK: return "block";
+			case WITHHOLD_ACK: return "withhold ACK";
+			default: return "unknown";
+		}
+	}
+
+
+//---------------------------------------------------------------------------------------------------//
+//---------------------------------------- Getters --------------------------------------------------//
+//---------------------------------------------------------------------------------------------------//
+
+	/**
+	 * Gets the overflow policy
+	 * @return DROP_NEWEST, DROP_OLDEST, BLOCK or WITHHOLD_ACK
+	 */
+	public int getPolicy(){
+		return policy;
+	}
+
+	/**
+	 * Gets the number of packets this buffer holds
+	 * @return the capacity
+	 */
+	public int getCapacity(){
+		return capacity;
+	}
+
+	/**
+	 * Gets the number of packets that have been put in the buffer
+	 * @return the delivered count
+	 */
+	public long getDeliveredCount(){
+		return deliveredCount.get();
+	}
+
+	/**
+	 * Gets the number of new packets thrown away because the buffer was full
+	 * @return the dropped newest count
+	 */
+	public long getDroppedNewestCount(){
+		return droppedNewestCount.get();
+	}
+
+	/**
+	 * Gets the number of waiting packets thrown away to make room for new ones
+	 * @return the dropped oldest count
+	 */
+	public long getDroppedOldestCount(){
+		return droppedOldestCount.get();
+	}
+
+	/**
+	 * Gets the number of times a packet had to wait for room
+	 * @return the blocked count
+	 */
+	public long getBlockedCount(){
+		return blockedCount.get();
+	}
+
+	/**
+	 * Gets the number of times waiting for room timed out and the packet was dropped
+	 * @return the block timeout count
+	 */
+	public long getBlockTimeoutCount(){
+		return blockTimeoutCount.get();
+	}
+
+	/**
+	 * Gets the number of data packets that weren't ACKed because the buffer was full
+	 * @return the withheld ACK count
+	 */
+	public long getWithheldACKCount(){
+		return withheldACKCount.get();
+	}
+
+	/**
+	 * Gets the most packets that have been waiting at once
+	 * @return the high water mark
+	 */
+	public int getHighWaterMark(){
+		return highWaterMark.get();
+	}
+
+
+//---------------------------------------------------------------------------------------------------//
+//---------------------------------------- Setters --------------------------------------------------//
+//---------------------------------------------------------------------------------------------------//
+
+	/**
+	 * Sets what to run every time a packet is added
+	 * @param hook the hook to run on the adding thread, null for none
+	 */
+	public void setReadyHook(Runnable hook){
+		readyHook = hook;
+	}
+
+	/**
+	 * Sets the overflow policy
+	 * @param thePolicy DROP_NEWEST, DROP_OLDEST, BLOCK or WITHHOLD_ACK
+	 * @return false if it isn't one of those
+	 */
+	public boolean setPolicy(int thePolicy){
+		if(thePolicy < DROP_NEWEST || thePolicy > WITHHOLD_ACK)
+			return false;
+		policy = thePolicy;
+		return true;
+	}
+}
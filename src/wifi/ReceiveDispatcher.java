@@ -0,0 +1,65 @@
+package wifi;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Hands received packets to every {@link Subscription} that matches them
+ * @author Brandon Roberts
+ * @author Nate Olderman
+ */
+public class ReceiveDispatcher {
+	private CopyOnWriteArrayList<Subscription> subscriptions; //read on every frame, only changed when someone subscribes
+
+	/**
+	 * Makes a new ReceiveDispatcher with no subscribers
+	 */
+	public ReceiveDispatcher(){
+		subscriptions = new CopyOnWriteArrayList<Subscription>();
+	}
+
+	/**
+	 * Adds a subscriber
+	 * @param subscription the subscription to add
+	 */
+	public void subscribe(Subscription subscription){
+		subscriptions.add(subscription);
+	}
+
+	/**
+	 * Removes a subscriber
+	 * @param subscription the subscription to remove
+	 * @return true if it was subscribed
+	 */
+	public boolean unsubscribe(Subscription subscription){
+		return subscriptions.remove(subscription);
+	}
+
+	/**
+	 * Checks if any subscriber wants the packet, in which case it doesn't go on the receive buffer
+	 * @param packet the received packet
+	 * @return true if a subscriber matches it
+	 */
+	public boolean claims(Packet packet){
+		for(Subscription subscription : subscriptions){
+			if(subscription.matches(packet))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Gives the packet to every subscriber that matches it
+	 * @param packet the received packet
+	 * @return true if at least one subscriber got it
+	 */
+	public boolean dispatch(Packet packet){
+		boolean claimed = false;
+		for(Subscription subscription : subscriptions){
+			if(subscription.matches(packet)){
+				subscription.deliver(packet);
+				claimed = true;
+			}
+		}
+		return claimed;
+	}
+}
@@ -0,0 +1,259 @@
+package wifi;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Staged replacement for running the Receiver on one thread. One thread reads frames from the RF layer,
+ * a pool of decode threads builds and CRC checks the Packets in parallel, and one dispatch thread runs the
+ * Receiver's sequence number, ACK and delivery work. Frames from the same source always go through the same
+ * decode thread, so they reach the dispatcher in the order they arrived. Stages are joined by bounded
+ * single producer single consumer queues.
+ * @author Brandon Roberts
+ * @author Nate Olderman
+ */
+public class ReceivePipeline {
+	private static final int STAGE_QUEUE_SIZE = 64; //frames each handoff queue holds
+	private static final int DISPATCH_SPIN_LIMIT = 100; //empty passes over the queues before the dispatcher parks
+
+	private Medium medium;
+	private Receiver receiver;
+	private FrameCapture frameCapture; 	//every frame read is captured before it is decoded
+
+	private SpscQueue<ReceivedFrame>[] toDecode; 	//reader to each decode thread
+	private SpscQueue<ReceivedFrame>[] toDispatch; 	//each decode thread to the dispatcher
+
+	private StageMetrics decodeWaitMetrics; 	//time spent waiting to be decoded
+	private StageMetrics decodeMetrics; 		//time spent decoding and checking the CRC
+	private StageMetrics dispatchWaitMetrics; 	//time spent waiting to be dispatched
+	private StageMetrics dispatchMetrics; 		//time spent in the Receiver
+
+	/**
+	 * Makes a new ReceivePipeline, which does nothing until it is started
+	 * @param theMedium the medium to receive from
+	 * @param theReceiver the receiver that does the work on decoded packets
+	 * @param decodeThreads the number of threads decoding in parallel
+	 * @param theFrameCapture the capture every frame read goes through
+	 */
+	public ReceivePipeline(Medium theMedium, Receiver theReceiver, int decodeThreads, FrameCapture theFrameCapture){
+		medium = theMedium;
+		receiver = theReceiver;
+		frameCapture = theFrameCapture;
+
+		toDecode = newQueues(decodeThreads);
+		toDispatch = newQueues(decodeThreads);
+
+		decodeWaitMetrics = new StageMetrics("Decode queue wait");
+		decodeMetrics = new StageMetrics("Decode");
+		dispatchWaitMetrics = new StageMetrics("Dispatch queue wait");
+		dispatchMetrics = new StageMetrics("Dispatch");
+	}
+
+	/**
+	 * Starts the reader, decode and dispatch threads
+	 */
+	public void start(){
+		Thread dispatcher = new Thread(new Runnable(){
+			public void run(){
+				dispatch();
+			}
+		}, "Receive dispatch");
+		dispatcher.setPriority(Thread.MAX_PRIORITY - 1); //ACK matching is time sensitive
+		dispatcher.start();
+
+		for(int i = 0; i < toDecode.length; i++){
+			final int worker = i;
+			new Thread(new Runnable(){
+				public void run(){
+					decode(worker);
+				}
+			}, "Receive decode " + i).start();
+		}
+
+		new Thread(new Runnable(){
+			public void run(){
+				read();
+			}
+		}, "Receive read").start();
+	}
+
+//----------------------------------------------------------------------------------------------------------//
+//---------------------------------------- Stages ----------------------------------------------------------//
+//----------------------------------------------------------------------------------------------------------//
+
+	/**
+	 * Reader stage: takes frames off the RF layer as fast as they come and hands them to the decode thread for their source
+	 */
+	private void read(){
+		while(true){
+			byte[] bytes = medium.receive();
+			ReceivedFrame frame = new ReceivedFrame(bytes, System.nanoTime());
+			frameCapture.capture(FrameCapture.RECEIVED, bytes, frame.receivedNanos);
+
+			int worker = 0;
+			if(bytes.length >= 6) //frames too short to have a source all go to the first thread
+				worker = (((bytes[4] & 0xFF) << 8) | (bytes[5] & 0xFF)) % toDecode.length;
+
+			toDecode[worker].put(frame);
+		}
+	}
+
+	/**
+	 * Decode stage: builds and CRC checks Packets
+	 * @param worker which decode thread this is
+	 */
+	private void decode(int worker){
+		SpscQueue<ReceivedFrame> in = toDecode[worker];
+		SpscQueue<ReceivedFrame> out = toDispatch[worker];
+
+		while(true){
+			ReceivedFrame frame = in.take();
+			long start = System.nanoTime();
+			decodeWaitMetrics.record(start - frame.timestamp);
+
+			frame.packet = new Packet(frame.bytes);
+			frame.packet.setReceivedNanos(frame.receivedNanos);
+
+			frame.timestamp = System.nanoTime();
+			decodeMetrics.record(frame.timestamp - start);
+			out.put(frame);
+		}
+	}
+
+	/**
+	 * Dispatch stage: takes decoded packets from every decode thread in turn and runs them through the Receiver
+	 */
+	private void dispatch(){
+		int idleCount = 0;
+		while(true){
+			boolean found = false;
+			for(int i = 0; i < toDispatch.length; i++){
+				ReceivedFrame frame = toDispatch[i].poll();
+				if(frame == null)
+					continue;
+
+				found = true;
+				long start = System.nanoTime();
+				dispatchWaitMetrics.record(start - frame.timestamp);
+
+				receiver.processPacket(frame.packet);
+				dispatchMetrics.record(System.nanoTime() - start);
+			}
+
+			if(found)
+				idleCount = 0;
+			else if(++idleCount >= DISPATCH_SPIN_LIMIT){
+				awaitDecoded();
+				idleCount = 0;
+			}
+		}
+	}
+
+	/**
+	 * Parks the dispatch thread until a decode thread hands it something. It announces itself to every
+	 * queue before looking at them one last time, so a packet that lands as it parks still wakes it.
+	 */
+	private void awaitDecoded(){
+		Thread dispatcher = Thread.currentThread();
+		for(int i = 0; i < toDispatch.length; i++)
+			toDispatch[i].setWaitingConsumer(dispatcher);
+		try{
+			for(int i = 0; i < toDispatch.length; i++){
+				if(toDispatch[i].size() > 0)
+					return;
+			}
+			LockSupport.park(this);
+		} finally{
+			for(int i = 0; i < toDispatch.length; i++)
+				toDispatch[i].setWaitingConsumer(null);
+		}
+	}
+
+	/**
+	 * Makes a set of empty handoff queues, since Java can't make an array of a generic type directly
+	 * @param count how many queues to make
+	 * @return the queues
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static SpscQueue<ReceivedFrame>[] newQueues(int count){
+		SpscQueue<ReceivedFrame>[] queues = new SpscQueue[count];
+		for(int i = 0; i < count; i++)
+			queues[i] = new SpscQueue<ReceivedFrame>(STAGE_QUEUE_SIZE);
+		return queues;
+	}
+
+//---------------------------------------------------------------------------------------------------//
+//---------------------------------------- Getters --------------------------------------------------//
+//---------------------------------------------------------------------------------------------------//
+
+	/**
+	 * Gets the number of frames waiting in every handoff queue
+	 * @return the total queue depth
+	 */
+	public int getQueueDepth(){
+		int depth = 0;
+		for(int i = 0; i < toDecode.length; i++)
+			depth += toDecode[i].size() + toDispatch[i].size();
+		return depth;
+	}
+
+	/**
+	 * Gets the timing of the decode stage
+	 * @return the decode metrics
+	 */
+	public StageMetrics getDecodeMetrics(){
+		return decodeMetrics;
+	}
+
+	/**
+	 * Gets the timing of the dispatch stage
+	 * @return the dispatch metrics
+	 */
+	public StageMetrics getDispatchMetrics(){
+		return dispatchMetrics;
+	}
+
+	/**
+	 * Gets how long frames wait to be decoded
+	 * @return the decode wait metrics
+	 */
+	public StageMetrics getDecodeWaitMetrics(){
+		return decodeWaitMetrics;
+	}
+
+	/**
+	 * Gets how long frames wait to be dispatched
+	 * @return the dispatch wait metrics
+	 */
+	public StageMetrics getDispatchWaitMetrics(){
+		return dispatchWaitMetrics;
+	}
+
+	/**
+	 * Describes every stage and queue for display
+	 * @return the metrics as a string
+	 */
+	public String toString(){
+		String queues = "";
+		for(int i = 0; i < toDecode.length; i++)
+			queues += "\n\t Decode thread " + i + " queues: in " + toDecode[i].size() + " (max " + toDecode[i].getHighWaterMark() +
+					"), out " + toDispatch[i].size() + " (max " + toDispatch[i].getHighWaterMark() + ")";
+
+		return decodeWaitMetrics + "\n\t " + decodeMetrics + "\n\t " + dispatchWaitMetrics + "\n\t " + dispatchMetrics + queues;
+	}
+
+	/**
+	 * A frame on its way through the pipeline
+	 */
+	private static class ReceivedFrame {
+		private byte[] bytes;
+		private Packet packet; 	//null until it has been decoded
+		private long timestamp; //when it was put on the queue it is in, in nanoseconds
+		private long receivedNanos; //when it came off the RF layer, in nanoseconds
+
+		private ReceivedFrame(byte[] theBytes, long theTimestamp){
+			bytes = theBytes;
+			timestamp = theTimestamp;
+			receivedNanos = theTimestamp;
+		}
+	}
+}
@@ -1,56 +1,63 @@
 package wifi;
-import rf.RF;
 
 import java.io.PrintWriter;
-import java.util.concurrent.*;
 import java.util.*;
 
 
 /**
- * Threaded Receiver that continually watches the RF layer for incoming information
+ * Threaded Receiver that continually watches the medium for incoming information
  * @author Brandon Roberts
  * @author Nate Olderman
  */
 public class Receiver implements Runnable {
 	private static final int BUFFER_SIZE_LIMIT = 4; //the limit to the size of the buffers
 	private static final int SEQ_NUM_LIMIT = (1 << 12); //the sequence numbers should never hit 2^12
-	private static final long SLEEP_WAIT = 5; //the amount of time to sleep when it is waiting for something
 
-	private RF rf;
+	private Medium medium;
 	private short ourMac;
 	private LocalClock localClock;
 	private PrintWriter output;
+	private DebugLog debugLog;
+	private FrameCapture frameCapture;
+	private AckResponder ackResponder; //sends our ACKs so we never wait on the channel
+	private ReceiveDispatcher dispatcher; //subscribers that take packets instead of the receiverBuf
+	private OutstandingFrames outstandingFrames; //frames the Sender is waiting to have ACKed
 
-	private ConcurrentLinkedDeque<Packet> senderBuf;
-	private ArrayBlockingQueue<Packet> receiverBuf;
+	private ReceiveBuffer receiverBuf;
 	
-	private HashMap<Short, Short> recvSeqNums; //expected seqNum for stuff we get from other hosts
-	private HashMap<Short, Packet[]> outOfOrderTable; //packets that have a higher seqNum than we are expecting for the srcAddress
+	private HashMap<Short, Short> recvSeqNums; //expected seqNum for bcasts and beacons
+	private HashMap<Short, ReorderWindow> outOfOrderTable; //expected seqNum and packets that have a higher seqNum than we are expecting for the srcAddress
 	
 
 	/**
-	 * Makes a new Receiver object that watches the RF layer for incoming information
-	 * @param theRF the RF layer to receive from
-	 * @param senderBuffer the queue of packets needing to be sent (use in Receiver to confirm ACK)
+	 * Makes a new Receiver object that watches the medium for incoming information
+	 * @param theMedium the medium to receive from
 	 * @param receiverBuffer the queue of received packets
 	 * @param theMac our MAC address
 	 * @param theLocalClock the local clock object
 	 * @param outputWriter the output to write to
+	 * @param theAckResponder the responder that sends the ACKs for what we receive
+	 * @param theDispatcher the subscribers to hand received packets to
+	 * @param theOutstandingFrames the index of frames waiting on an ACK
 	 */
-	public Receiver(RF theRF, ConcurrentLinkedDeque<Packet> senderBuffer, ArrayBlockingQueue<Packet> receiverBuffer, short theMac, LocalClock theLocalClock, PrintWriter outputWriter){
-		rf = theRF;
-		senderBuf = senderBuffer;
+	public Receiver(Medium theMedium, ReceiveBuffer receiverBuffer, short theMac, LocalClock theLocalClock, PrintWriter outputWriter, AckResponder theAckResponder, ReceiveDispatcher theDispatcher, OutstandingFrames theOutstandingFrames){
+		medium = theMedium;
+		outstandingFrames = theOutstandingFrames;
+		ackResponder = theAckResponder;
+		dispatcher = theDispatcher;
 		receiverBuf = receiverBuffer;
 		ourMac = theMac;
 		output = outputWriter;
 		localClock = theLocalClock;
+		debugLog = localClock.getDebugLog();
+		frameCapture = localClock.getFrameCapture();
 
 		recvSeqNums = new HashMap<Short, Short>();
-		outOfOrderTable = new HashMap<Short, Packet[]>();
+		outOfOrderTable = new HashMap<Short, ReorderWindow>();
 	}
 	
 	/**
-	 * Begins waiting for the rf layer to receive and puts it in the receiverBuf
+	 * Begins waiting for the medium to receive and puts it in the receiverBuf
 	 */
 	public void run() {
 		if(receiverBuf == null){
@@ -60,106 +67,125 @@ public class Receiver implements Runnable {
 		}
 		
 		while(true){
-			Packet packet = new Packet(rf.receive());
+			byte[] frame = medium.receive();
+			long receivedNanos = localClock.nanoTime();
+			frameCapture.capture(FrameCapture.RECEIVED, frame, receivedNanos);
+
+			Packet packet = new Packet(frame);
+			packet.setReceivedNanos(receivedNanos);
+			processPacket(packet);
+		}
+	}
+
+	/**
+	 * Does everything that happens to a received packet once it has been decoded: ACK matching, sequence
+	 * number work, sending the ACK, and giving it to the layer above. Must always be called from the same thread.
+	 * @param packet the received packet
+	 */
+	public void processPacket(Packet packet){
+		//---all conditions below are mutually exclusive, if one happens, none of the others happen---//
+		//if packet is corrupt
+		if(packet.checkIfCorrupt()){
+			localClock.setLastEvent(LocalClock.UNSPECIFIED_ERROR, packet.getSrcAddr(), packet.getSeqNum());//UNSPECIFIED_ERROR 	General error code
 			
-			//---all conditions below are mutually exclusive, if one happens, none of the others happen---//
-			//if packet is corrupt
-			if(packet.checkIfCorrupt()){
-				localClock.setLastEvent(LocalClock.UNSPECIFIED_ERROR);//UNSPECIFIED_ERROR 	General error code
-				
-				if(localClock.getDebugOn())
-					output.println("CORRUPTED PACKET RECEIVED");
-			}
+			debugLog.log(DebugLog.CORRUPT_FRAME);
+		}
 
-			//if the packet is a beacon
-			else if(packet.getFrameType() == 2){
-				if(packet.getDestAddr() == -1 && localClock.getBeaconsOn() && checkBcastSeqNum(packet))//shares the same kind of seqNum check as Bcast
-					localClock.updateClockOffset(packet);
+		//if the packet is a beacon
+		else if(packet.getFrameType() == 2){
+			if(packet.getDestAddr() == -1 && localClock.getBeaconsOn() && checkBcastSeqNum(packet)){//shares the same kind of seqNum check as Bcast
+				localClock.updateClockOffset(packet);
+				dispatcher.dispatch(packet); //anyone subscribed to beacons gets them too
 			}
+		}
 
-			//if the buffer is full
-			else if(receiverBuf.size() >= 4 ){
-				localClock.setLastEvent(LocalClock.INSUFFICIENT_BUFFER_SPACE);//INSUFFICIENT_BUFFER_SPACE 	Outgoing transmission rejected due to insufficient buffer space
-				
-				if(localClock.getDebugOn())
-					output.println("INSUFFICIENT BUFFER SPACE");
-			}
+		//if it is data for us that no subscriber is going to take, the buffer is full, and we are not ACKing it so the sender backs off
+		else if(packet.getDestAddr() == ourMac && packet.getFrameType() == 0 && !dispatcher.claims(packet) && receiverBuf.withholdACK()){
+			localClock.setLastEvent(LocalClock.INSUFFICIENT_BUFFER_SPACE, packet.getSrcAddr(), packet.getSeqNum());//INSUFFICIENT_BUFFER_SPACE 	Outgoing transmission rejected due to insufficient buffer space
+			
+			debugLog.log(DebugLog.WITHHELD_ACK, packet.getSeqNum(), packet.getSrcAddr());
+		}
 
-			//if the packet was sent to everyone (bcast)
-			else if(packet.getDestAddr() == -1 && packet.getFrameType() == 0){
-				if(checkBcastSeqNum(packet)){
-					try{ 
-						receiverBuf.put(packet);	//put up the broadcast no matter what
-					} catch(InterruptedException e){
-						localClock.setLastEvent(LocalClock.UNSPECIFIED_ERROR);
-						System.err.println("Receiver interrupted!");
-					}
-				}
-			}
+		//if the packet was sent to everyone (bcast)
+		else if(packet.getDestAddr() == -1 && packet.getFrameType() == 0){
+			if(checkBcastSeqNum(packet))
+				deliver(packet);	//put up the broadcast no matter what
+		}
+
+		//if the destination was our mac address
+		else if(packet.getDestAddr() == ourMac){
+			if(packet.getFrameType() == 1){//if it is an ACK, find the frame it is for no matter where it is in the sender's queue
+				int result = outstandingFrames.acknowledge(packet.getSrcAddr(), packet.getSeqNum());
 
-			//if the destination was our mac address
-			else if(packet.getDestAddr() == ourMac){
-				if(packet.getFrameType() == 1 && !senderBuf.isEmpty() && senderBuf.peek().getFrameType() == 0){//if it is an ACK and we expect an ACK
-					
-					//if it is an ACK from the host we are expecting and the sequence number is what we are expecting
-					if(packet.getSrcAddr() == senderBuf.peek().getDestAddr() && packet.getSeqNum() == senderBuf.peek().getSeqNum())
-						senderBuf.peek().setAsAcked();	//tell sender that that packet was ACKed
-				}
-				else if(packet.getFrameType() == 0)//else if it is normal data
-					checkSeqNum(packet);
+				if(result != OutstandingFrames.MATCHED)
+					debugLog.log(result == OutstandingFrames.LATE ? DebugLog.LATE_ACK : DebugLog.DUPLICATE_ACK, packet.getSeqNum(), packet.getSrcAddr());
 			}
+			else if(packet.getFrameType() == 0)//else if it is normal data
+				checkSeqNum(packet);
 		}
 	}
 
 
+	/**
+	 * Expects the next frame from the packet's sender to have the packet's sequence number, unless something is
+	 * already expected from it, for picking a stream up part way through such as in a replayed capture. Must be
+	 * called from the thread processing packets, or before it processes any.
+	 * @param packet a frame from the sender, which isn't processed
+	 * @return true if the sender's expected sequence number was set
+	 */
+	public boolean expectFrom(Packet packet){
+		if(packet.checkIfCorrupt())
+			return false;
+
+		//broadcasts and beacons share one expected seqNum
+		if(packet.getDestAddr() == -1 && (packet.getFrameType() == 0 || packet.getFrameType() == 2)){
+			if(recvSeqNums.containsKey(packet.getDestAddr()))
+				return false;
+			recvSeqNums.put(packet.getDestAddr(), packet.getSeqNum());
+			return true;
+		}
+
+		if(packet.getDestAddr() != ourMac || packet.getFrameType() != 0 || outOfOrderTable.containsKey(packet.getSrcAddr()))
+			return false;
+		outOfOrderTable.put(packet.getSrcAddr(), new ReorderWindow(localClock.getReorderWindowSize(), packet.getSeqNum()));
+		return true;
+	}
+
 	/**
 	* Checks the sequence number on the packet, and does any necessary sequence number work
 	* @param packet the packet whose sequence number it is checking
 	*/
 	private void checkSeqNum(Packet packet){
-		short expectedSeqNum = getExpectedSeqNum(packet.getSrcAddr()); 
-
-		//if we haven't seen this host yet
-		if(expectedSeqNum == 0)
-			outOfOrderTable.put(packet.getSrcAddr(), new Packet[BUFFER_SIZE_LIMIT*2]);//need double the allocated window space as can be sent at one time
+		ReorderWindow window = getReorderWindow(packet.getSrcAddr());
+		int distance = window.distanceFromExpected(packet.getSeqNum());
 		
 		//if the sequence number is what we expect
-		if(expectedSeqNum == packet.getSeqNum()){
-			//send ACK
-			transmitACK(packet);
+		if(distance == 0){
+			//hand the ACK off to be sent
+			ackResponder.requestACK(packet);
 			
-			//put it in the receiver buf to be taken by the layer above
-			try{ 
-				receiverBuf.put(packet);
-			} catch(InterruptedException e){
-				localClock.setLastEvent(LocalClock.UNSPECIFIED_ERROR);
-				System.err.println("Receiver interrupted!");
-			}
+			//give it to the layer above
+			deliver(packet);
+			if(window.pollNext() == null) //throw away the copy of it held back from a full buffer, if there is one
+				window.advance();
 
 			//checks to see if there are other packets that had higher sequence numbers that should be pushed to layer above
-			checkOutOfOrderTable(packet, outOfOrderTable.get(packet.getSrcAddr()));
+			checkOutOfOrderTable(window);
 		}
 		
 		//if the received packet has a higher sequence number than what we expect
-		else if(expectedSeqNum < packet.getSeqNum()){ 
-			localClock.setLastEvent(LocalClock.UNSPECIFIED_ERROR);
+		else if(distance > 0){ 
+			localClock.setLastEvent(LocalClock.UNSPECIFIED_ERROR, packet.getSrcAddr(), packet.getSeqNum());
 			//doesn't print out error message if debug is on because we were supposed to print out the fact that a gap was detected whether or not debug was on
-			output.println("Detected a gap, expected: " + expectedSeqNum + " got: " + packet.getSeqNum() + " from: " + packet.getSrcAddr());
-
-			//get how far away this is from the expected sequence number for position in array (-1 because the expected packet doesn't have a spot in array)
-			int displacement = packet.getSeqNum() - expectedSeqNum - 1;
+			output.println("Detected a gap, expected: " + window.getExpectedSeqNum() + " got: " + packet.getSeqNum() + " from: " + packet.getSrcAddr());
 
-			//if we are within the bounds of what we can hold onto
-			if(displacement < BUFFER_SIZE_LIMIT * 2){
-				Packet[] missingPackets = outOfOrderTable.get(packet.getSrcAddr());//get a pointer to make the next line readable
-				//add the packet to the spot in the array
-				missingPackets[displacement] = packet; 
-			}
+			//hold onto it if it is within the bounds of what we can hold onto
+			window.store(packet);
 		}
 
 		//otherwise it was for something we already got and the ACK got lost, so we have to resend ACK
 		else
-			transmitACK(packet);
+			ackResponder.requestACK(packet);
 	}
 
 	/**
@@ -168,8 +194,8 @@ public class Receiver implements Runnable {
 	* @return true if we should accept the packet
 	*/
 	private boolean checkBcastSeqNum(Packet packet){
-		//make sure the seq num is greater than or equal to expected
-		if(packet.getSeqNum() >= getExpectedSeqNum((short)-1)){
+		//make sure the seq num is greater than or equal to expected (as 12 bit serial numbers so it survives the wrap)
+		if(ReorderWindow.seqDistance(getExpectedSeqNum((short)-1), packet.getSeqNum()) >= 0){
 			updateSeqNum(packet.getDestAddr(), packet.getSeqNum());
 			return true;
 		}
@@ -204,88 +230,46 @@ public class Receiver implements Runnable {
 	}
 
 	/**
-	* Helper method that checks if there are packets with higher seqNums waiting in the queue that should be given to the layer above
-	* it also then updates the expected seqNum
-	* @param currentPacket the current packet to compare the out of order packets to
-	* @param packets the queue of packets with higher seq nums
+	* Gets the reorder window for the given source address, making one if we haven't seen this host yet
+	* @param sourceAddress the source address to find the corresponding window for
+	* @return the reorder window for that host
 	*/
-	private void checkOutOfOrderTable(Packet currentPacket, Packet[] packets){
-		int i;//save so it can be used to update expected seq num below
-
-		for(i = 0; i < packets.length; i++){ //go through everything in the queue
-			if(packets[i] == null)//if this spot is a gap
-				break;//break out of the loop!!!
-			else{
-				//give it to the layer above
-				try{ 
-					receiverBuf.put(packets[i]);
-				} catch(InterruptedException e){
-					localClock.setLastEvent(LocalClock.UNSPECIFIED_ERROR);
-					System.err.println("Receiver interrupted!");
-				}
-			}
+	private ReorderWindow getReorderWindow(short sourceAddress){
+		ReorderWindow window = outOfOrderTable.get(sourceAddress);
+		if(window == null){
+			window = new ReorderWindow(localClock.getReorderWindowSize()); //assuming it starts at zero
+			outOfOrderTable.put(sourceAddress, window);
 		}
-
-		
-		//advance items in the array so the first packet in the queue is at index 0
-		//doesn't leave a spot for the gap because that is what we are expecting next
-		if(packets.length > 0)
-			outOfOrderTable.put(currentPacket.getSrcAddr(), Arrays.copyOfRange(packets, i+1, packets.length));
-		
-		
-		//update expected seqNum to the current packet's sequence number + 1 (to update to the next expected) and then + i (to update how many packets were taken from waiting)
-		updateSeqNum(currentPacket.getSrcAddr(), (short) (currentPacket.getSeqNum() + i));
-	}
-
-
-//----------------------------------------------------------------------------------------------------------//
-//---------------------------------------- Sending an ACK --------------------------------------------------//
-//----------------------------------------------------------------------------------------------------------//
-	
-
-	private void transmitACK(Packet oldPacket){
-		byte[] toSend = (new Packet((short)1, oldPacket.getSeqNum(), oldPacket.getSrcAddr(), oldPacket.getDestAddr(), new byte[1])).toBytes(); 
-
-		waitForIdleChannelToACK(); 	// checks if channel is idle and then waits SIFS
-		rf.transmit(toSend);	// transmit the ACK
-
-		if(localClock.getDebugOn())
-			output.println("Receiver transmitted ACK of Sequence Number: " + oldPacket.getSeqNum());
+		return window;
 	}
 
 	/**
-	 * Waits for the the channel to be idle in order to send an ACK
-	 */
-	private void waitForIdleChannelToACK(){
-		if(localClock.getDebugOn())
-			output.println("Receiver waiting for idle channel to ACK at Time: " +  (localClock.getLocalTime()));
-		
-		while(rf.inUse()){
-			try{
-				Thread.sleep(SLEEP_WAIT);
-			}catch(InterruptedException e){
-				localClock.setLastEvent(LocalClock.UNSPECIFIED_ERROR);
-				System.err.println("Sender interrupted!");
-			}
+	* Helper method that gives any packets waiting in the window that are now in order to the layer above
+	* it also then updates the expected seqNum
+	* @param window the reorder window of the host the current packet came from
+	*/
+	private void checkOutOfOrderTable(ReorderWindow window){
+		Packet packet;
+		while((packet = window.peekNext()) != null){ //stops at the next gap
+			if(!dispatcher.claims(packet) && receiverBuf.holdBack())
+				return; //it was never ACKed, so it stays in the window and goes up when its sender retries it
+			window.pollNext();
+			deliver(packet); //give it to the layer above
 		}
-		
-		waitSIFS(); //Only wait SIFS when idle because we are sending an ACK
 	}
 
 	/**
-	 * Waits SIFS time
-	 */
-	private void waitSIFS(){
-		if(localClock.getDebugOn())
-			output.println("Receiver waiting SIFS At Time: " +  (localClock.getLocalTime()));
-		
-		try {
-			Thread.sleep(RF.aSIFSTime);
-		} catch (InterruptedException e) {
-			System.err.println("Receiver failed waiting SIFS");
+	* Gives the packet to the layer above, either to the subscribers that want it or the receiverBuf if none do
+	* @param packet the packet to deliver
+	*/
+	private void deliver(Packet packet){
+		if(dispatcher.dispatch(packet))
+			return;
+
+		//the overflow policy decides what happens if it is full
+		if(!receiverBuf.offer(packet)){
+			localClock.setLastEvent(LocalClock.INSUFFICIENT_BUFFER_SPACE, packet.getSrcAddr(), packet.getSeqNum());
+			debugLog.log(DebugLog.RECEIVE_DROPPED, packet.getSeqNum(), packet.getSrcAddr());
 		}
-
-		if(rf.inUse())	//if channel is in use wait for it to be idle for an ack
-			waitForIdleChannelToACK();
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,130 @@
+package wifi;
+
+/**
+ * A circular window of packets received ahead of the expected sequence number from one source.
+ * Packets are stored at seqNum mod window size with a bitmap of the occupied slots, so nothing
+ * is shifted or allocated when packets are delivered. Sequence numbers are compared as 12 bit
+ * serial numbers so the window keeps working when they wrap at 2^12.
+ * @author Brandon Roberts
+ * @author Nate Olderman
+ */
+public class ReorderWindow {
+	private static final int SEQ_NUM_LIMIT = (1 << 12); //the sequence numbers should never hit 2^12
+	private static final int SEQ_NUM_MASK = SEQ_NUM_LIMIT - 1;
+	private static final int HALF_SEQ_SPACE = SEQ_NUM_LIMIT / 2;
+
+	private Packet[] slots; 	//packets waiting on a gap, at seqNum mod window size
+	private long[] occupied; 	//bit set for every slot that holds a packet
+	private int slotMask; 		//window size - 1, the window size is always a power of two
+	private int expectedSeqNum; //the next seqNum that can be given to the layer above
+
+	/**
+	 * Makes a new empty ReorderWindow expecting sequence number 0
+	 * @param windowSize the number of packets past the expected one to hold, rounded up to a power of two
+	 */
+	public ReorderWindow(int windowSize){
+		this(windowSize, 0);
+	}
+
+	/**
+	 * Makes a new empty ReorderWindow expecting the given sequence number, for a source we start hearing part way through
+	 * @param windowSize the number of packets past the expected one to hold, rounded up to a power of two
+	 * @param firstSeqNum the sequence number expected first
+	 */
+	public ReorderWindow(int windowSize, int firstSeqNum){
+		int size = 1;
+		while(size < windowSize && size < HALF_SEQ_SPACE) //a power of two divides 2^12 so seqNum mod size survives the wrap
+			size <<= 1;
+
+		slots = new Packet[size];
+		occupied = new long[(size + 63) / 64];
+		slotMask = size - 1;
+		expectedSeqNum = firstSeqNum & SEQ_NUM_MASK;
+	}
+
+	/**
+	 * Gets how far the given sequence number is ahead of another, treating them as 12 bit serial numbers
+	 * @param from the sequence number to measure from
+	 * @param to the sequence number to measure to
+	 * @return the distance from one to the other, negative if to is behind from
+	 */
+	public static int seqDistance(int from, int to){
+		return ((to - from + HALF_SEQ_SPACE) & SEQ_NUM_MASK) - HALF_SEQ_SPACE;
+	}
+
+	/**
+	 * Gets how far the given sequence number is ahead of the one we expect
+	 * @param seqNum the sequence number to check
+	 * @return 0 if it is the expected one, negative if we already got it, positive if there is a gap
+	 */
+	public int distanceFromExpected(short seqNum){
+		return seqDistance(expectedSeqNum, seqNum);
+	}
+
+	/**
+	 * Holds onto a packet that arrived ahead of the expected sequence number
+	 * @param packet the packet to hold
+	 * @return true if it fit in the window, false if it is too far ahead (or not ahead at all)
+	 */
+	public boolean store(Packet packet){
+		int distance = distanceFromExpected(packet.getSeqNum());
+		if(distance <= 0 || distance > slots.length)
+			return false;
+
+		int slot = packet.getSeqNum() & slotMask;
+		slots[slot] = packet;
+		occupied[slot >>> 6] |= 1L << slot;
+		return true;
+	}
+
+	/**
+	 * Moves the window past the expected sequence number after it has been given to the layer above
+	 */
+	public void advance(){
+		expectedSeqNum = (expectedSeqNum + 1) & SEQ_NUM_MASK;
+	}
+
+	/**
+	 * Gets the packet with the expected sequence number without taking it out of the window
+	 * @return the next in order packet, or null if there is still a gap
+	 */
+	public Packet peekNext(){
+		int slot = expectedSeqNum & slotMask;
+		if((occupied[slot >>> 6] & (1L << slot)) == 0)
+			return null;
+		return slots[slot];
+	}
+
+	/**
+	 * Takes the packet with the expected sequence number out of the window if we are holding it,
+	 * and moves the window past it
+	 * @return the next in order packet, or null if there is still a gap
+	 */
+	public Packet pollNext(){
+		int slot = expectedSeqNum & slotMask;
+		if((occupied[slot >>> 6] & (1L << slot)) == 0)
+			return null;
+
+		Packet packet = slots[slot];
+		slots[slot] = null;
+		occupied[slot >>> 6] &= ~(1L << slot);
+		advance();
+		return packet;
+	}
+
+	/**
+	 * Gets the sequence number we expect next
+	 * @return the expected sequence number
+	 */
+	public int getExpectedSeqNum(){
+		return expectedSeqNum;
+	}
+
+	/**
+	 * Gets the number of packets this window can hold
+	 * @return the window size
+	 */
+	public int getWindowSize(){
+		return slots.length;
+	}
+}
@@ -14,40 +14,75 @@ import rf.RF;
 public class Sender implements Runnable{
 	private static final int BUFFER_SIZE_LIMIT = 4; //the limit to the size of the buffers
 	private static final int SEQ_NUM_LIMIT = (1 << 12); //the sequence numbers should never hit 2^12
-	private static final long SLEEP_WAIT = 5; //the amount of time to sleep when it is waiting for something
+	private static final long SLEEP_WAIT = 5; //the amount of time to sleep when polling the RF layer for an idle channel
 
-	private RF rf;
+	private Medium medium;
 	private LocalClock localClock;
 	private short ourMAC;
 	
 	private HashMap<Short, Integer> sendSeqNums; //Key of the destAddress, and value of the next seqNum we are sending
 
 	private ConcurrentLinkedDeque<Packet> senderBuf;
+	private OutstandingFrames outstandingFrames; //frames transmitted and waiting on an ACK, for the Receiver to match ACKs against
 
 	private Packet currentPacket;	//keep track of the current packet that is being sent
 	private byte[] packetAsBytes;
 
+	private Semaphore workSignal;				//released when there is a frame to send or a beacon is due
+	private volatile boolean beaconDue;			//set by the beacon timer, cleared when the beacon is queued
+	private volatile boolean ackTimedOut;		//set by the ACK timer for the current packet
+	private TimingWheel.Timer ackTimer;			//the ACK timeout for the current packet
+	private VirtualClock virtualClock;			//what every wait goes through in virtual time, null in real time
+	private VirtualClock.Condition workWaiting;	//the virtual time version of the work signal
+	private VirtualClock.Condition ackSettled;	//the virtual time version of waiting on the current packet
+
 	private PrintWriter output;		//output given by linkLayer
+	private DebugLog debugLog;		//structured debug output, formatted off the sending thread
+	private FrameCapture frameCapture;	//binary record of every frame sent
 
 
 	/**
 	 * Makes a new Sender object that continually checks the channel for idle time to send packets
-	 * @param theRF the RF layer to send packets out through
+	 * @param theMedium the medium to send packets out through
 	 * @param senderBuffer the queue of packets needing to be sent
 	 * @param ourMACAddr the MAC address
 	 * @param theLocalClock the local clock object
 	 * @param theOutput the printwriter to write to 
+	 * @param seqNums the next seqNum to send to each host
+	 * @param theOutstandingFrames the index of frames waiting on an ACK
 	 */
-	public Sender(RF theRF, ConcurrentLinkedDeque<Packet> senderBuffer, short ourMACAddr, LocalClock theLocalClock, PrintWriter theOutput, HashMap<Short, Integer> seqNums){
-		rf = theRF;
+	public Sender(Medium theMedium, ConcurrentLinkedDeque<Packet> senderBuffer, short ourMACAddr, LocalClock theLocalClock, PrintWriter theOutput, HashMap<Short, Integer> seqNums, OutstandingFrames theOutstandingFrames){
+		medium = theMedium;
+		outstandingFrames = theOutstandingFrames;
 		sendSeqNums = seqNums;
 		senderBuf = senderBuffer;
 		ourMAC = ourMACAddr;
 		localClock = theLocalClock;
 
 		currentPacket = null;
+		workSignal = new Semaphore(0);
+		virtualClock = localClock.getVirtualClock();
+		workWaiting = new VirtualClock.Condition(){
+			public boolean isMet(){
+				return workSignal.availablePermits() > 0;
+			}
+		};
+		ackSettled = new VirtualClock.Condition(){
+			public boolean isMet(){
+				return currentPacket.isAcked() || ackTimedOut;
+			}
+		};
 
 		output = theOutput;
+		debugLog = localClock.getDebugLog();
+		frameCapture = localClock.getFrameCapture();
+	}
+
+	/**
+	 * Wakes the sender up if it is waiting for something to do
+	 */
+	public void wakeUp(){
+		workSignal.release();
 	}
 
 	/**
@@ -57,6 +92,13 @@ public class Sender implements Runnable{
 		if(senderBuf == null)
 			localClock.setLastEvent(LocalClock.BAD_ADDRESS);//Pointer to a buffer or address was NULL
 		//no debug print here because user cannot turn on debug until after this
+
+		localClock.startBeaconTimer(new Runnable(){
+			public void run(){
+				beaconDue = true;
+				wakeUp();
+			}
+		});
 		
 		while(true)
 			waitForFrame();
@@ -70,21 +112,27 @@ public class Sender implements Runnable{
 	 * State that waits for a frame
 	 */
 	private void waitForFrame(){
-		if(localClock.getBeaconsOn()) //only send beacons if we have them turned on
+		if(beaconDue){ //only set while beacons are turned on
+			beaconDue = false;
 			checkToSendBeacon();
+		}
 
 		if(!senderBuf.isEmpty()){
 			currentPacket = senderBuf.peek();
-			packetAsBytes = currentPacket.toBytes();
+			packetAsBytes = currentPacket.getFrameBytes(); //already encoded by the FrameEncoder unless it fell behind
 
-			if(!rf.inUse())
+			if(!medium.inUse())
 				waitDIFS();
 			else
 				waitForIdleChannel();
 			
 		} else{	//if the senderbuf is empty we wait for something to send
 			try{
-				Thread.sleep(SLEEP_WAIT);
+				if(virtualClock != null)
+					virtualClock.await(workWaiting);
+				else
+					workSignal.acquire();
+				workSignal.drainPermits(); //one pass handles everything that was signalled
 			}catch(InterruptedException e){
 				localClock.setLastEvent(LocalClock.UNSPECIFIED_ERROR);
 				System.err.println("Sender interrupted!");
@@ -96,16 +144,11 @@ public class Sender implements Runnable{
 	 * State that first waits DIFS then checks for backoff
 	 */
 	private void backoffWaitIFS(){
-		if(localClock.getDebugOn())
-			output.println("Waiting DIFS and Backingoff At Time: " +  localClock.getLocalTime());
+		debugLog.log(DebugLog.WAIT_DIFS_BACKOFF);
 
-		try {
-			Thread.sleep(localClock.roundedUpDIFS());
-		} catch (InterruptedException e) {
-			System.err.println("Failed waiting DIFS");
-		}
+		waitOnWheel(localClock.roundedUpDIFS());
 
-		if(rf.inUse())	//if someone popped in right before us we have to wait again
+		if(medium.inUse())	//if someone popped in right before us we have to wait again
 			waitForIdleChannel();
 		else{
 			int backoffCount = localClock.getBackoffCount();
@@ -122,16 +165,11 @@ public class Sender implements Runnable{
 	 * State that waits a slot time
 	 */
 	private void waitSlotTime(){
-		if(localClock.getDebugOn())
-			output.println("Waiting Slot time at Time: " +  localClock.getLocalTime());
+		debugLog.log(DebugLog.WAIT_SLOT, localClock.getBackoffCount());
 
-		try {
-			Thread.sleep(RF.aSlotTime);
-		} catch (InterruptedException e) {
-			System.err.println("Failed waiting slot time");
-		}
+		waitOnWheel(RF.aSlotTime);
 		
-		if(rf.inUse())										//channel is used and we can't continue doing our slot time wait
+		if(medium.inUse())										//channel is used and we can't continue doing our slot time wait
 			waitForIdleChannel();
 		else{
 			int backoffCount = localClock.getBackoffCount();
@@ -150,14 +188,9 @@ public class Sender implements Runnable{
 	 * State that waits the DIFS time 
 	 */
 	private void waitDIFS(){
-		if(localClock.getDebugOn())
-			output.println("Waiting DIFS at Time: " + localClock.getLocalTime());
+		debugLog.log(DebugLog.WAIT_DIFS);
 		
-		try {
-			Thread.sleep(localClock.roundedUpDIFS());
-		} catch (InterruptedException e) {
-			System.err.println("Failed waiting DIFS");
-		}
+		waitOnWheel(localClock.roundedUpDIFS());
 
 		transmitPacket();
 	}
@@ -178,22 +211,23 @@ public class Sender implements Runnable{
 			senderBuf.remove(currentPacket);
 
 		else if(currentPacket.isAcked()){
-			localClock.setLastEvent(LocalClock.TX_DELIVERED);//TX_DELIVERED 	Last transmission was acknowledged
-
-			if(localClock.getDebugOn())
-				output.println("TX DELIVERED");
+			localClock.setLastEvent(LocalClock.TX_DELIVERED, currentPacket.getDestAddr(), currentPacket.getSeqNum());//TX_DELIVERED 	Last transmission was acknowledged
+			debugLog.log(DebugLog.TX_DELIVERED, currentPacket.getSeqNum(), currentPacket.getDestAddr());
 
+			ackTimer.cancel();
 			senderBuf.remove(currentPacket); //since it is acked we pull it off
+			outstandingFrames.remove(currentPacket);
 			localClock.setCollisionWindow(1); //reset window size
 		}
 
 		else if(currentPacket.getNumRetryAttempts()  >= RF.dot11RetryLimit){  //hit retry limit and it breaks so that it will pull it off the buffer
-			localClock.setLastEvent(LocalClock.TX_FAILED); //TX_FAILED 	Last transmission was abandoned after unsuccessful delivery attempts
-			if(localClock.getDebugOn())
-				output.println("TX FAILED: Setting dead host next sequence number to 0");
+			localClock.setLastEvent(LocalClock.TX_FAILED, currentPacket.getDestAddr(), currentPacket.getSeqNum()); //TX_FAILED 	Last transmission was abandoned after unsuccessful delivery attempts
+			debugLog.log(DebugLog.TX_FAILED, currentPacket.getSeqNum(), currentPacket.getDestAddr());
 			
 			//remove this packet
+			ackTimer.cancel();
 			senderBuf.remove(currentPacket);
+			outstandingFrames.remove(currentPacket);
 
 			//set the collision window back to 1
 			localClock.setCollisionWindow(1);
@@ -211,14 +245,21 @@ public class Sender implements Runnable{
 			}			
 		}
 
-		else if(localClock.checkACKTimeout()) //if it has taken longer than a ten seconds, so timeout and retransmit
+		else if(ackTimedOut) //if the ACK timer went off, so timeout and retransmit
 			timedOut();
 
-		else{ //else not timed out yet
-			try {
-				Thread.sleep(SLEEP_WAIT);
-			} catch (InterruptedException e) {
-				System.err.println("Failed waiting for ACK");
+		else{ //else not timed out yet, wait for the ACK or the timer to wake us
+			if(virtualClock != null) //the ACK timer goes off in virtual time, so wait on the clock
+				virtualClock.await(ackSettled);
+			else{
+				synchronized(currentPacket){
+					try {
+						while(!currentPacket.isAcked() && !ackTimedOut)
+							currentPacket.wait();
+					} catch (InterruptedException e) {
+						System.err.println("Failed waiting for ACK");
+					}
+				}
 			}
 			return false;
 		}
@@ -231,12 +272,11 @@ public class Sender implements Runnable{
 	 * State that waits for the channel to be idle
 	 */
 	private void waitForIdleChannel(){
-		if(localClock.getDebugOn())
-			output.println("Waiting for idle channel at Time: " +  (localClock.getLocalTime()));
+		debugLog.log(DebugLog.WAIT_IDLE_CHANNEL);
 		
-		while(rf.inUse()){
+		while(medium.inUse()){
 			try{
-				Thread.sleep(SLEEP_WAIT);
+				localClock.sleep(SLEEP_WAIT);
 			}catch(InterruptedException e){
 				localClock.setLastEvent(LocalClock.UNSPECIFIED_ERROR);
 				System.err.println("Sender interrupted!");
@@ -255,14 +295,38 @@ public class Sender implements Runnable{
 	 * Transmits the packet and waits for an ACK
 	 */
 	private void transmitPacket(){		
-		if(rf.inUse())
+		if(medium.inUse())
 			waitForIdleChannel();
 
-		rf.transmit(packetAsBytes);
-		localClock.startACKTimer();
+		//let the receiver match the ACK to it (bcasts and beacons never get one)
+		if(currentPacket.getDestAddr() != -1 && currentPacket.getFrameType() == 0)
+			outstandingFrames.add(currentPacket);
+
+		if(currentPacket.getFrameType() == 2){ //beacons are stamped right as they go out and time how long that takes
+			localClock.stampBeacon(currentPacket);
+			packetAsBytes = currentPacket.getFrameBytes();
+		}
+
+		long start = localClock.nanoTime();
+		medium.transmit(packetAsBytes);
+		if(currentPacket.getFrameType() == 2)
+			localClock.recordBeaconAirtime(localClock.nanoTime() - start);
+		frameCapture.capture(FrameCapture.SENT, packetAsBytes, start);
+
+		if(currentPacket.getDestAddr() != -1 && currentPacket.getFrameType() == 0){ //only unicast data waits on an ACK
+			final Packet sent = currentPacket;
+			ackTimedOut = false;
+			ackTimer = localClock.startACKTimer(new Runnable(){
+				public void run(){
+					synchronized(sent){
+						ackTimedOut = true;
+						sent.notifyAll(); //wake the sender waiting on this ACK
+					}
+				}
+			});
+		}
 
-		if(localClock.getDebugOn())
-			output.println("Transmited packet!");
+		debugLog.log(DebugLog.TRANSMITTED, currentPacket.getSeqNum(), currentPacket.getDestAddr(), packetAsBytes.length);
 
 		while(!waitForACK());//keep calling the method while it hasn't either gotten an ACK or given up
 	}
@@ -284,6 +348,31 @@ public class Sender implements Runnable{
 		}
 	}
 
+	/**
+	 * Blocks the sender until a deadline on the timing wheel passes
+	 * @param delay how long to wait in milliseconds
+	 */
+	private void waitOnWheel(long delay){
+		if(virtualClock != null){ //the wheel's timers go off in virtual time too, so just sleep on the clock
+			virtualClock.sleep(delay);
+			return;
+		}
+
+		final CountDownLatch passed = new CountDownLatch(1);
+		localClock.schedule(new Runnable(){
+			public void run(){
+				passed.countDown();
+			}
+		}, delay);
+
+		try {
+			passed.await();
+		} catch (InterruptedException e) {
+			localClock.setLastEvent(LocalClock.UNSPECIFIED_ERROR);
+			System.err.println("Sender interrupted!");
+		}
+	}
+
 	/**
 	* Gets the next sequence number for the given destination address and updates it
 	* @param destAddress the destination address to find the corresponding next sequence number 
@@ -310,25 +399,19 @@ public class Sender implements Runnable{
 	private void timedOut(){
 		localClock.setCollisionWindow(localClock.getCollisionWindow() * 2);//windowSize *= 2; double window size
 
-		if(localClock.getDebugOn()){
-			output.println("SENDER got to timeout and now trying to retransmit sequence number: " + currentPacket.getSeqNum());
-			output.println("Collision window changed to: " + localClock.getCollisionWindow());
-		}
-
 		//get the backoff count based on if the slot selection is fixed
 		if(localClock.getSlotSelectionFixed()) 
 			localClock.setBackoffCount(localClock.getCollisionWindow());//backoffCount = windowSize;
 		else
-			localClock.setBackoffCount((int)(Math.random()* (localClock.getCollisionWindow()+1)));//backoffCount = (int) (Math.random()*(windowSize + 1));
+			localClock.setBackoffCount(localClock.randomSlot(localClock.getCollisionWindow()));//backoffCount = (int) (Math.random()*(windowSize + 1));
 
-		if(localClock.getDebugOn()) //print if debug is on
-			output.println("BackoffCount changed to: "+ localClock.getBackoffCount());
+		debugLog.log(DebugLog.ACK_TIMEOUT, currentPacket.getSeqNum(), localClock.getCollisionWindow(), localClock.getBackoffCount());
 
 		currentPacket.retry(); //increment the retry attempt counter in the packet
-		packetAsBytes = currentPacket.toBytes();//recreate byte version of packet
+		packetAsBytes = currentPacket.getFrameBytes();//recreate byte version of packet
 
 		//try to resend
-		if(rf.inUse())
+		if(medium.inUse())
 			waitForIdleChannel();
 		else 
 			backoffWaitIFS();
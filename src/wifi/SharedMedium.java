@@ -0,0 +1,334 @@
+package wifi;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An in-memory channel shared by any number of stations in one process, for running many LinkLayers
+ * against each other without the network. Each station gets its own {@link Medium} from {@link #attach()}.
+ * <p>
+ * A frame is on the air for a fixed time per byte and reaches every other station a propagation delay
+ * after it was sent. Stations sense the channel busy while any frame is arriving at them. Frames that are
+ * on the air at the same time collide, and none of them are received. Frames that get through can be lost
+ * or have a bit flipped at each receiver, using a Random from a seed so a run can be repeated.
+ * <p>
+ * Made with a {@link VirtualClock}, frames are on the air in virtual time and stations wait for them on the
+ * clock, so a simulation runs as fast as the stations can go and the same way every time.
+ * @author Brandon Roberts
+ * @author Nate Olderman
+ */
+public class SharedMedium {
+	/**
+	 * The RF layer's airtime, 50 milliseconds per byte, which the MAC timings are sized for
+	 */
+	public static final long DEFAULT_NANOS_PER_BYTE = 50 * 1000000L;
+
+	private long nanosPerByte; 			//airtime of each byte
+	private long propagationNanos; 		//time for a frame to reach the other stations
+	private double lossRate; 			//chance a frame is lost at each receiver
+	private double corruptionRate; 		//chance a frame has a bit flipped at each receiver
+	private Random random; 				//only used while holding the lock, so the draws are in delivery order
+
+	private ArrayList<Station> stations;
+	private ArrayList<Airing> airings; 	//frames on the air or still reaching the other stations
+	private long quietSince; 			//when the channel last went idle, in nanoseconds
+
+	private VirtualClock virtualClock; 	//where the time comes from, null for real time
+	private long epochMillis; 			//wall clock time when the medium was made, 0 in virtual time
+	private long startNanos; 			//nanoTime() when the medium was made
+
+	private long transmitted;
+	private long delivered; 			//frames put on a station's receive queue
+	private long collided; 				//frames that were on the air at the same time as another
+	private long lost;
+	private long corrupted;
+
+	/**
+	 * Makes a new SharedMedium with the RF layer's airtime, no propagation delay, and no loss or corruption
+	 * @param seed the seed for the loss and corruption draws
+	 */
+	public SharedMedium(long seed){
+		this(seed, null);
+	}
+
+	/**
+	 * Makes a new SharedMedium that may run in virtual time, with the RF layer's airtime, no propagation delay,
+	 * and no loss or corruption
+	 * @param seed the seed for the loss and corruption draws
+	 * @param theVirtualClock the clock the stations run on, or null for real time
+	 */
+	public SharedMedium(long seed, VirtualClock theVirtualClock){
+		nanosPerByte = DEFAULT_NANOS_PER_BYTE;
+		random = new Random(seed);
+		stations = new ArrayList<Station>();
+		airings = new ArrayList<Airing>();
+
+		virtualClock = theVirtualClock;
+		epochMillis = (virtualClock != null) ? 0 : System.currentTimeMillis(); //so every virtual run sees the same times
+		startNanos = nanoTime();
+		quietSince = startNanos;
+	}
+
+	/**
+	 * Adds a station to the medium
+	 * @return the medium for the station to send and receive on
+	 */
+	public synchronized Medium attach(){
+		Station station = new Station();
+		stations.add(station);
+		return station;
+	}
+
+	/**
+	 * Sets how long each byte of a frame is on the air
+	 * @param nanos the airtime per byte in nanoseconds
+	 */
+	public synchronized void setNanosPerByte(long nanos){
+		nanosPerByte = Math.max(0, nanos);
+	}
+
+	/**
+	 * Sets how long a frame takes to reach the other stations
+	 * @param nanos the propagation delay in nanoseconds
+	 */
+	public synchronized void setPropagationNanos(long nanos){
+		propagationNanos = Math.max(0, nanos);
+	}
+
+	/**
+	 * Sets the chance that a frame which didn't collide is lost at each station it reaches
+	 * @param rate the loss rate, from 0 to 1
+	 */
+	public synchronized void setLossRate(double rate){
+		lossRate = rate;
+	}
+
+	/**
+	 * Sets the chance that a frame which didn't collide has one bit flipped at each station it reaches
+	 * @param rate the corruption rate, from 0 to 1
+	 */
+	public synchronized void setCorruptionRate(double rate){
+		corruptionRate = rate;
+	}
+
+	/**
+	 * Gets the number of stations attached
+	 * @return the station count
+	 */
+	public synchronized int getStationCount(){
+		return stations.size();
+	}
+
+	/**
+	 * Gets the number of frames sent by any station
+	 * @return the transmitted count
+	 */
+	public synchronized long getTransmitted(){
+		return transmitted;
+	}
+
+	/**
+	 * Gets the number of frames that collided with another frame
+	 * @return the collided count
+	 */
+	public synchronized long getCollided(){
+		return collided;
+	}
+
+	/**
+	 * Gets the number of frames handed to a station, one for each station a frame reached
+	 * @return the delivered count
+	 */
+	public synchronized long getDelivered(){
+		return delivered;
+	}
+
+	/**
+	 * Describes the medium's counters for display
+	 * @return the counters as a string
+	 */
+	public synchronized String toString(){
+		return "Stations: " + stations.size() + " | Transmitted: " + transmitted + " | Collided: " + collided +
+				" | Delivered: " + delivered + " | Lost: " + lost + " | Corrupted: " + corrupted;
+	}
+
+
+//----------------------------------------------------------------------------------------------------------//
+//---------------------------------------- Helper Methods --------------------------------------------------//
+//----------------------------------------------------------------------------------------------------------//
+
+	/**
+	 * Puts a frame on the air, marking it and anything already on the air as collided if they overlap
+	 * @param sender the station sending it
+	 * @param frame the frame
+	 * @return the frame's airing
+	 */
+	private synchronized Airing startAiring(Station sender, byte[] frame){
+		long now = nanoTime();
+		Airing airing = new Airing(sender, frame, now, now + frame.length * nanosPerByte, propagationNanos);
+		for(Airing other : airings){
+			if(other.end > now){ //still on the air, so the two overlap at every receiver
+				other.collided = true;
+				airing.collided = true;
+			}
+		}
+		airings.add(airing);
+		transmitted++;
+		return airing;
+	}
+
+	/**
+	 * Takes a frame off the air once it has reached everyone, and hands it to every other station unless it collided
+	 * @param airing the frame's airing
+	 */
+	private synchronized void finishAiring(Airing airing){
+		airings.remove(airing);
+		if(airings.isEmpty())
+			quietSince = airing.gone;
+
+		if(airing.collided){
+			collided++;
+			return;
+		}
+
+		for(Station station : stations){
+			if(station == airing.sender)
+				continue;
+
+			double draw = random.nextDouble();
+			if(draw < lossRate){
+				lost++;
+				continue;
+			}
+
+			byte[] frame = airing.frame.clone(); //every receiver gets its own copy
+			if(draw < lossRate + corruptionRate && frame.length > 0){
+				int bit = random.nextInt(frame.length * 8);
+				frame[bit / 8] ^= (byte)(1 << (bit % 8));
+				corrupted++;
+			}
+			station.arrivals.add(frame);
+			delivered++;
+		}
+	}
+
+	/**
+	 * Checks whether any frame is arriving at the stations right now
+	 * @return true if the channel is busy
+	 */
+	private synchronized boolean channelBusy(){
+		long now = nanoTime();
+		for(Airing airing : airings){
+			if(airing.arrives <= now && now < airing.gone)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Gets how long the channel has been quiet
+	 * @return the idle time in nanoseconds, 0 if it is busy
+	 */
+	private synchronized long idleNanos(){
+		if(channelBusy())
+			return 0;
+		return Math.max(0, nanoTime() - quietSince);
+	}
+
+	/**
+	 * Gets the medium's time
+	 * @return System.nanoTime(), or the virtual clock's time
+	 */
+	private long nanoTime(){
+		return (virtualClock != null) ? virtualClock.nanoTime() : System.nanoTime();
+	}
+
+	/**
+	 * Waits until a point in time
+	 * @param deadline the nanoTime() to wait until
+	 */
+	private void sleepUntil(long deadline){
+		if(virtualClock != null){
+			virtualClock.sleepUntil(deadline);
+			return;
+		}
+
+		long remaining;
+		while((remaining = deadline - System.nanoTime()) > 0)
+			LockSupport.parkNanos(remaining);
+	}
+
+	/**
+	 * One frame's time on the air
+	 */
+	private static class Airing {
+		private Station sender;
+		private byte[] frame;
+		private long start; 		//when the sender started, in nanoseconds
+		private long end; 			//when the sender finished, in nanoseconds
+		private long arrives; 		//when the other stations start hearing it, in nanoseconds
+		private long gone; 			//when the other stations stop hearing it, in nanoseconds
+		private boolean collided; 	//guarded by the medium
+
+		private Airing(Station theSender, byte[] theFrame, long theStart, long theEnd, long propagation){
+			sender = theSender;
+			frame = theFrame;
+			start = theStart;
+			end = theEnd;
+			arrives = theStart + propagation;
+			gone = theEnd + propagation;
+		}
+	}
+
+	/**
+	 * One station's view of the medium
+	 */
+	private class Station implements Medium {
+		private LinkedBlockingQueue<byte[]> arrivals = new LinkedBlockingQueue<byte[]>();
+		private VirtualClock.Condition arrived = new VirtualClock.Condition(){
+			public boolean isMet(){
+				return !arrivals.isEmpty();
+			}
+		};
+
+		public int transmit(byte[] frame){
+			Airing airing = startAiring(this, frame);
+			sleepUntil(airing.gone); //like the RF layer, returns once the frame is out
+			finishAiring(airing);
+			return frame.length;
+		}
+
+		public byte[] receive(){
+			if(virtualClock != null){
+				virtualClock.await(arrived);
+				return arrivals.poll(); //only the station's receiver takes from it
+			}
+
+			while(true){
+				try{
+					return arrivals.take();
+				} catch(InterruptedException e){
+					//keep waiting, like the RF layer
+				}
+			}
+		}
+
+		public boolean inUse(){
+			return channelBusy();
+		}
+
+		public long clock(){
+			return epochMillis + (nanoTime() - startNanos) / 1000000L;
+		}
+
+		public long getIdleTime(){
+			return idleNanos() / 1000000L;
+		}
+
+		public boolean dataWaiting(){
+			return !arrivals.isEmpty();
+		}
+	}
+}
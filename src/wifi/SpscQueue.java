@@ -0,0 +1,149 @@
+package wifi;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free queue for handing items from exactly one producer thread to exactly one consumer thread.
+ * The producer only writes the tail and the consumer only writes the head, so neither ever takes a lock.
+ * A consumer with nothing to take spins briefly, then parks until the producer adds an item and wakes it.
+ * @author Brandon Roberts
+ * @author Nate Olderman
+ * @param <T> the type of item queued
+ */
+public class SpscQueue<T> {
+	private static final int SPIN_LIMIT = 100; 			//polls before starting to yield
+	private static final int YIELD_LIMIT = 200; 		//polls before starting to park
+	private static final long MAX_PARK_NANOS = 1000000; //longest an idle thread parks between polls
+	private static final int CONSUMER_SPIN_LIMIT = 100; //polls an empty queue's consumer makes before parking
+
+	private Object[] buffer;
+	private int mask;
+
+	private volatile long head; //next slot to take from, only written by the consumer
+	private volatile long tail; //next slot to put in, only written by the producer
+	private volatile long highWaterMark; //the most items that have been waiting at once, only written by the producer
+	private volatile Thread waitingConsumer; //the consumer while it is parked waiting for an item, otherwise null
+
+	/**
+	 * Makes a new empty queue
+	 * @param capacity the most items it holds, rounded up to a power of two
+	 */
+	public SpscQueue(int capacity){
+		int size = 1;
+		while(size < capacity)
+			size <<= 1;
+		buffer = new Object[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * Adds an item if there is room. Only call from the producer thread.
+	 * @param item the item to add
+	 * @return false if the queue was full
+	 */
+	public boolean offer(T item){
+		long currentTail = tail;
+		long depth = currentTail - head;
+		if(depth >= buffer.length)
+			return false;
+
+		buffer[(int)currentTail & mask] = item;
+		tail = currentTail + 1; //publishes the item to the consumer
+
+		if(depth + 1 > highWaterMark)
+			highWaterMark = depth + 1;
+
+		Thread consumer = waitingConsumer;
+		if(consumer != null)
+			LockSupport.unpark(consumer);
+		return true;
+	}
+
+	/**
+	 * Takes the oldest item if there is one. Only call from the consumer thread.
+	 * @return the oldest item, or null if the queue was empty
+	 */
+	@SuppressWarnings("unchecked")
+	public T poll(){
+		long currentHead = head;
+		if(currentHead == tail)
+			return null;
+
+		int slot = (int)currentHead & mask;
+		T item = (T)buffer[slot];
+		buffer[slot] = null;
+		head = currentHead + 1; //gives the slot back to the producer
+		return item;
+	}
+
+	/**
+	 * Adds an item, waiting for room if the queue is full. Only call from the producer thread.
+	 * @param item the item to add
+	 */
+	public void put(T item){
+		int idleCount = 0;
+		while(!offer(item))
+			idleCount = idle(idleCount);
+	}
+
+	/**
+	 * Takes the oldest item, waiting for one if the queue is empty. Only call from the consumer thread.
+	 * After a short spin the consumer parks, announcing itself before its last look at the queue so an
+	 * item that lands as it parks still wakes it.
+	 * @return the oldest item
+	 */
+	public T take(){
+		T item;
+		for(int i = 0; i < CONSUMER_SPIN_LIMIT; i++){
+			if((item = poll()) != null)
+				return item;
+		}
+
+		waitingConsumer = Thread.currentThread();
+		try{
+			while((item = poll()) == null)
+				LockSupport.park(this);
+			return item;
+		} finally{
+			waitingConsumer = null;
+		}
+	}
+
+	/**
+	 * Sets the thread to wake when an item is added, for a consumer that waits on more than one queue
+	 * at once. It has to look at every queue again after setting itself and before parking.
+	 * @param consumer the consumer about to park, or null once it is running again
+	 */
+	public void setWaitingConsumer(Thread consumer){
+		waitingConsumer = consumer;
+	}
+
+	/**
+	 * Gets the number of items waiting
+	 * @return the queue depth
+	 */
+	public int size(){
+		return (int)(tail - head);
+	}
+
+	/**
+	 * Gets the most items that have been waiting at once
+	 * @return the high water mark
+	 */
+	public long getHighWaterMark(){
+		return highWaterMark;
+	}
+
+	/**
+	 * Backs off a thread that is waiting for room: spinning at first, then yielding, then parking for longer and longer
+	 * @param idleCount how many times in a row the thread has found nothing to do
+	 * @return the idle count to pass in next time
+	 */
+	public static int idle(int idleCount){
+		if(idleCount >= YIELD_LIMIT)
+			LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, 1000L << Math.min(idleCount - YIELD_LIMIT, 10)));
+		else if(idleCount >= SPIN_LIMIT)
+			Thread.yield();
+		return idleCount + 1;
+	}
+}
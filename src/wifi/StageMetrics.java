@@ -0,0 +1,71 @@
+package wifi;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts and times the items going through one stage of a pipeline
+ * @author Brandon Roberts
+ * @author Nate Olderman
+ */
+public class StageMetrics {
+	private String name;
+	private AtomicLong count;
+	private AtomicLong totalNanos;
+	private AtomicLong maxNanos;
+
+	/**
+	 * Makes new empty metrics for a stage
+	 * @param theName the name of the stage
+	 */
+	public StageMetrics(String theName){
+		name = theName;
+		count = new AtomicLong();
+		totalNanos = new AtomicLong();
+		maxNanos = new AtomicLong();
+	}
+
+	/**
+	 * Records one item going through the stage
+	 * @param nanos how long the item took
+	 */
+	public void record(long nanos){
+		count.incrementAndGet();
+		totalNanos.addAndGet(nanos);
+
+		long max;
+		while(nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos));
+	}
+
+	/**
+	 * Gets the number of items that have gone through the stage
+	 * @return the count
+	 */
+	public long getCount(){
+		return count.get();
+	}
+
+	/**
+	 * Gets the average time an item took
+	 * @return the mean latency in nanoseconds, 0 if nothing has gone through
+	 */
+	public long getMeanNanos(){
+		long items = count.get();
+		return items == 0 ? 0 : totalNanos.get() / items;
+	}
+
+	/**
+	 * Gets the longest time an item took
+	 * @return the max latency in nanoseconds
+	 */
+	public long getMaxNanos(){
+		return maxNanos.get();
+	}
+
+	/**
+	 * Describes the metrics for display
+	 * @return the metrics as a string
+	 */
+	public String toString(){
+		return name + ": " + getCount() + " items, mean " + getMeanNanos() / 1000 + " us, max " + getMaxNanos() / 1000 + " us";
+	}
+}
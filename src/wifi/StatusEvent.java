@@ -0,0 +1,88 @@
+package wifi;
+
+/**
+ * One status code set by the link layer, with when it happened and which frame it was about
+ * @author Brandon Roberts
+ * @author Nate Olderman
+ */
+public class StatusEvent {
+	/**
+	 * Used for the peer or sequence number when the event wasn't about a frame
+	 */
+	public static final int NONE = Integer.MIN_VALUE;
+
+	private final long sequence; 	//how many events were recorded before this one
+	private final long time; 		//local time it happened in milliseconds
+	private final int code; 		//one of the LocalClock status codes
+	private final int peer; 		//MAC address of the other host, or NONE
+	private final int seqNum; 		//sequence number of the frame, or NONE
+
+	/**
+	 * Makes a new StatusEvent
+	 * @param theSequence how many events were recorded before this one
+	 * @param theTime the local time it happened in milliseconds
+	 * @param theCode the status code
+	 * @param thePeer the MAC address of the other host, or NONE
+	 * @param theSeqNum the sequence number of the frame, or NONE
+	 */
+	public StatusEvent(long theSequence, long theTime, int theCode, int thePeer, int theSeqNum){
+		sequence = theSequence;
+		time = theTime;
+		code = theCode;
+		peer = thePeer;
+		seqNum = theSeqNum;
+	}
+
+	/**
+	 * Gets how many events were recorded before this one
+	 * @return the sequence of the event
+	 */
+	public long getSequence(){
+		return sequence;
+	}
+
+	/**
+	 * Gets when the event happened
+	 * @return the local time in milliseconds
+	 */
+	public long getTime(){
+		return time;
+	}
+
+	/**
+	 * Gets the status code
+	 * @return one of the LocalClock status codes
+	 */
+	public int getCode(){
+		return code;
+	}
+
+	/**
+	 * Gets the host the event was about
+	 * @return the MAC address of the other host, or NONE
+	 */
+	public int getPeer(){
+		return peer;
+	}
+
+	/**
+	 * Gets the sequence number of the frame the event was about
+	 * @return the sequence number, or NONE
+	 */
+	public int getSeqNum(){
+		return seqNum;
+	}
+
+	/**
+	 * Describes the event for display
+	 * @return the event as a string
+	 */
+	public String toString(){
+		String event = "#" + sequence + " at " + time + ": " + StatusLog.statusName(code) + " (" + code + ")";
+		if(peer != NONE)
+			event += " peer " + peer;
+		if(seqNum != NONE)
+			event += " seq " + seqNum;
+		return event;
+	}
+}
@@ -0,0 +1,123 @@
+package wifi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Every status code the link layer sets, instead of only the latest one. The most recent events are kept in a
+ * lock-free ring that overwrites the oldest, and every code has a counter that only goes up, so a TX_FAILED
+ * is still there to find after the next TX_DELIVERED.
+ * @author Brandon Roberts
+ * @author Nate Olderman
+ */
+public class StatusLog {
+	private static final int MAX_CODE = LocalClock.INSUFFICIENT_BUFFER_SPACE; //the highest status code
+
+	private AtomicReferenceArray<StatusEvent> events;
+	private int mask;
+	private AtomicLong nextSequence; 	//the sequence the next event gets, also the number recorded so far
+	private AtomicLongArray counts; 	//events recorded for each code, indexed by code
+
+	/**
+	 * Makes a new empty StatusLog
+	 * @param capacity the number of recent events it keeps, rounded up to a power of two
+	 */
+	public StatusLog(int capacity){
+		int size = 1;
+		while(size < capacity)
+			size <<= 1;
+
+		events = new AtomicReferenceArray<StatusEvent>(size);
+		mask = size - 1;
+		nextSequence = new AtomicLong();
+		counts = new AtomicLongArray(MAX_CODE + 1);
+	}
+
+	/**
+	 * Records an event, overwriting the oldest one if the ring is full
+	 * @param time the local time it happened in milliseconds
+	 * @param code the status code
+	 * @param peer the MAC address of the other host, or StatusEvent.NONE
+	 * @param seqNum the sequence number of the frame, or StatusEvent.NONE
+	 */
+	public void record(long time, int code, int peer, int seqNum){
+		long sequence = nextSequence.getAndIncrement();
+		events.set((int)sequence & mask, new StatusEvent(sequence, time, code, peer, seqNum));
+
+		if(code >= 0 && code <= MAX_CODE)
+			counts.incrementAndGet(code);
+	}
+
+	/**
+	 * Gets the most recent events, oldest first
+	 * @param max the most events to get, where anything below 0 gets none
+	 * @return the events still in the ring, up to max
+	 */
+	public List<StatusEvent> recent(int max){
+		long end = nextSequence.get();
+		long start = Math.max(0, end - Math.min(Math.max(0, max), events.length()));
+
+		List<StatusEvent> recentEvents = new ArrayList<StatusEvent>((int)(end - start));
+		for(long i = start; i < end; i++){
+			StatusEvent event = events.get((int)i & mask);
+			if(event != null && event.getSequence() == i) //skip slots still being written or already overwritten
+				recentEvents.add(event);
+		}
+		return recentEvents;
+	}
+
+	/**
+	 * Gets the number of times a status code has been set
+	 * @param code the status code
+	 * @return the count for that code, 0 if it isn't a status code
+	 */
+	public long getCount(int code){
+		if(code < 0 || code > MAX_CODE)
+			return 0;
+		return counts.get(code);
+	}
+
+	/**
+	 * Gets the number of events recorded
+	 * @return the total count
+	 */
+	public long getTotal(){
+		return nextSequence.get();
+	}
+
+	/**
+	 * Describes the count for every code that has been set
+	 * @return the counts as a string
+	 */
+	public String toString(){
+		String counters = "Total: " + nextSequence.get();
+		for(int code = 1; code <= MAX_CODE; code++){
+			long count = counts.get(code);
+			if(count > 0)
+				counters += " | " + statusName(code) + ": " + count;
+		}
+		return counters;
+	}
+
+	/**
+	 * Gets the name of a status code
+	 * @param code the status code
+	 * @return the name of the code
+	 */
+	public static String statusName(int code){
+		switch(code){
+			case LocalClock.SUCCESS: return "SUCCESS";
+			case LocalClock.UNSPECIFIED_ERROR: return "UNSPECIFIED_ERROR";
+			case LocalClock.RF_INIT_FAILED: return "RF_INIT_FAILED";
+			case LocalClock.TX_DELIVERED: return "TX_DELIVERED";
+			case LocalClock.TX_FAILED: return "TX_FAILED";
+			case LocalClock.BAD_BUF_SIZE: return "BAD_BUF_SIZE";
+			case LocalClock.BAD_ADDRESS: return "BAD_ADDRESS";
+			case LocalClock.BAD_MAC_ADDRESS: return "BAD_MAC_ADDRESS";
+			case LocalClock.ILLEGAL_ARGUMENT: return "ILLEGAL_ARGUMENT";
+			case LocalClock.INSUFFICIENT_BUFFER_SPACE: return "INSUFFICIENT_BUFFER_SPACE";
+			default: return "UNKNOWN";
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package wifi;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A consumer of received frames, filtered by source address and frame type. Frames are either
+ * handed to a {@link FrameListener} or put on a bounded queue owned by this subscription, so
+ * several consumers can receive in parallel without sharing the link layer's receive buffer.
+ * @author Brandon Roberts
+ * @author Nate Olderman
+ */
+public class Subscription {
+	/**
+	 * Matches frames from every source address
+	 */
+	public static final int ANY_SOURCE = Integer.MIN_VALUE;
+
+	/**
+	 * Matches data frames, which is everything the layer above normally gets
+	 */
+	public static final int ANY_TYPE = Integer.MIN_VALUE;
+
+	private int srcAddr; 		//the source address to match, or ANY_SOURCE
+	private int frameType; 		//the frame type to match, or ANY_TYPE
+	private short ourMAC;
+
+	private FrameListener listener; 					//called with each frame, null if this subscription is queued
+	private ArrayBlockingQueue<Transmission> frames; 	//frames waiting to be taken, null if this subscription has a listener
+	private VirtualClock virtualClock; 					//recv waits on this instead of in real time, null for real time
+
+	private AtomicLong deliveredCount; 	//frames given to this subscriber
+	private AtomicLong droppedCount; 	//frames dropped because the queue was full
+
+	/**
+	 * Makes a subscription that calls a listener with each matching frame
+	 * @param source the source address to match, or ANY_SOURCE
+	 * @param type the frame type to match, or ANY_TYPE
+	 * @param ourMACAddr our MAC address, the destination of everything we deliver
+	 * @param theListener the listener to call
+	 */
+	public Subscription(int source, int type, short ourMACAddr, FrameListener theListener){
+		this(source, type, ourMACAddr);
+		listener = theListener;
+	}
+
+	/**
+	 * Makes a subscription that queues each matching frame until it is taken with {@link #recv(Transmission)}
+	 * @param source the source address to match, or ANY_SOURCE
+	 * @param type the frame type to match, or ANY_TYPE
+	 * @param ourMACAddr our MAC address, the destination of everything we deliver
+	 * @param queueSize how many frames can wait before new ones are dropped
+	 */
+	public Subscription(int source, int type, short ourMACAddr, int queueSize){
+		this(source, type, ourMACAddr, queueSize, null);
+	}
+
+	/**
+	 * Makes a subscription that queues each matching frame, and may wait for them in virtual time. In virtual
+	 * time only the clock's participants can call {@link #recv(Transmission)}.
+	 * @param source the source address to match, or ANY_SOURCE
+	 * @param type the frame type to match, or ANY_TYPE
+	 * @param ourMACAddr our MAC address, the destination of everything we deliver
+	 * @param queueSize how many frames can wait before new ones are dropped
+	 * @param theVirtualClock the virtual clock recv waits on, or null for real time
+	 */
+	public Subscription(int source, int type, short ourMACAddr, int queueSize, VirtualClock theVirtualClock){
+		this(source, type, ourMACAddr);
+		frames = new ArrayBlockingQueue<Transmission>(queueSize);
+		virtualClock = theVirtualClock;
+	}
+
+	/**
+	 * Sets up the filter and counters shared by both kinds of subscription
+	 * @param source the source address to match, or ANY_SOURCE
+	 * @param type the frame type to match, or ANY_TYPE
+	 * @param ourMACAddr our MAC address
+	 */
+	private Subscription(int source, int type, short ourMACAddr){
+		srcAddr = source;
+		frameType = type;
+		ourMAC = ourMACAddr;
+		deliveredCount = new AtomicLong();
+		droppedCount = new AtomicLong();
+	}
+
+	/**
+	 * Blocks until a frame arrives for this subscription, then writes it into the Transmission
+	 * @param t the transmission to fill with the data received
+	 * @return the number of bytes received, -1 if this subscription uses a listener or was interrupted
+	 */
+	public int recv(Transmission t){
+		if(frames == null || t == null)
+			return -1;
+
+		try{
+			Transmission received;
+			if(virtualClock != null){
+				while((received = frames.poll()) == null){ //another participant may have taken it first
+					virtualClock.await(new VirtualClock.Condition(){
+						public boolean isMet(){
+							return !frames.isEmpty();
+						}
+					});
+				}
+			}
+			else
+				received = frames.take();
+			t.setBuf(received.getBuf());
+			t.setSourceAddr(received.getSourceAddr());
+			t.setDestAddr(received.getDestAddr());
+			return received.getBuf().length;
+		} catch(InterruptedException e){
+			return -1;
+		}
+	}
+
+	/**
+	 * Checks if the given packet is one this subscriber wants
+	 * @param packet the received packet
+	 * @return true if the source and type match
+	 */
+	public boolean matches(Packet packet){
+		if(srcAddr != ANY_SOURCE && (srcAddr & 0xFFFF) != (packet.getSrcAddr() & 0xFFFF)) //addresses above 32767 come out of the packet negative
+			return false;
+		if(frameType == ANY_TYPE)
+			return packet.getFrameType() == 0;
+		return frameType == packet.getFrameType();
+	}
+
+	/**
+	 * Gives a matching packet to the subscriber
+	 * @param packet the received packet
+	 */
+	public void deliver(Packet packet){
+		Transmission t = new Transmission(packet.getSrcAddr(), ourMAC, packet.getDataBuf());
+		if(listener != null){
+			listener.frameReceived(t);
+			deliveredCount.incrementAndGet();
+		}
+		else if(frames.offer(t))
+			deliveredCount.incrementAndGet();
+		else
+			droppedCount.incrementAndGet();
+	}
+
+	/**
+	 * Gets the number of frames given to this subscriber
+	 * @return the delivered count
+	 */
+	public long getDeliveredCount(){
+		return deliveredCount.get();
+	}
+
+	/**
+	 * Gets the number of frames dropped because this subscriber's queue was full
+	 * @return the dropped count
+	 */
+	public long getDroppedCount(){
+		return droppedCount.get();
+	}
+}
@@ -0,0 +1,328 @@
+package wifi;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed timing wheel that owns every MAC deadline (ACK timeouts, beacon intervals, backoff slots) and runs
+ * a callback on its own thread when each one passes. Timers hash into a ring of buckets by the tick they are
+ * due on, so scheduling, cancelling and expiring each cost O(1) no matter how many are pending. The thread
+ * parks until the earliest tick a timer is due on, and parks indefinitely when there are none.
+ * Callbacks run on the wheel thread, so they should only flag or wake whoever does the real work.
+ * A wheel made with a {@link VirtualClock} has no thread, and hands its timers to the clock instead.
+ * @author Brandon Roberts
+ * @author Nate Olderman
+ */
+public class TimingWheel implements Runnable {
+	private static final long DEFAULT_TICK = 1; 	//milliseconds per tick
+	private static final int DEFAULT_SLOTS = 512; 	//buckets in the ring, must be a power of two
+
+	private static final int PENDING = 0;
+	private static final int CANCELLED = 1;
+	private static final int EXPIRED = 2;
+
+	private long tickNanos;
+	private Timer[] buckets; 	//head of the list of timers due on each tick, only touched by the wheel thread
+	private int mask;
+
+	private long startNanos;
+	private long tick; 			//the next tick to expire, only touched by the wheel thread
+	private int inWheel; 		//timers sitting in buckets, only touched by the wheel thread
+
+	private ConcurrentLinkedQueue<Timer> newTimers; 		//scheduled but not in a bucket yet
+	private ConcurrentLinkedQueue<Timer> cancelledTimers; 	//cancelled but maybe still in a bucket
+	private volatile Thread wheelThread; 					//null until it is started
+	private VirtualClock virtualClock; 						//runs the timers instead of the wheel thread, null for real time
+
+	private AtomicInteger pendingCount;
+	private AtomicLong scheduledCount;
+	private AtomicLong expiredCount;
+	private AtomicLong cancelledCount;
+
+	/**
+	 * Makes a new TimingWheel with a 1 ms tick and 512 buckets, which does nothing until it is started
+	 */
+	public TimingWheel(){
+		this(DEFAULT_TICK, DEFAULT_SLOTS);
+	}
+
+	/**
+	 * Makes a new TimingWheel, which does nothing until it is started
+	 * @param tickMillis how many milliseconds each tick is, the most a timer can fire late by
+	 * @param slots the number of buckets, rounded up to a power of two
+	 */
+	public TimingWheel(long tickMillis, int slots){
+		int size = 1;
+		while(size < slots)
+			size <<= 1;
+
+		tickNanos = tickMillis * 1000000;
+		buckets = new Timer[size];
+		mask = size - 1;
+		startNanos = System.nanoTime();
+
+		newTimers = new ConcurrentLinkedQueue<Timer>();
+		cancelledTimers = new ConcurrentLinkedQueue<Timer>();
+
+		pendingCount = new AtomicInteger();
+		scheduledCount = new AtomicLong();
+		expiredCount = new AtomicLong();
+		cancelledCount = new AtomicLong();
+	}
+
+	/**
+	 * Makes a new TimingWheel whose timers go off in virtual time instead of real time
+	 * @param theVirtualClock the clock to run the timers on
+	 */
+	public TimingWheel(VirtualClock theVirtualClock){
+		this(DEFAULT_TICK, DEFAULT_SLOTS);
+		virtualClock = theVirtualClock;
+	}
+
+	/**
+	 * Starts the wheel thread, unless the timers run in virtual time
+	 */
+	public void start(){
+		if(virtualClock != null)
+			return; //the virtual clock runs them
+		Thread thread = new Thread(this, "Timing wheel");
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MAX_PRIORITY - 1); //deadlines are what the MAC timing is built on
+		wheelThread = thread;
+		thread.start();
+	}
+
+	/**
+	 * Continually loops forever expiring the timers due on each tick as it passes
+	 */
+	public void run(){
+		while(true){
+			removeCancelledTimers(); //before the check below, so timers cancelled while we slept don't count
+			long currentTick = (System.nanoTime() - startNanos) / tickNanos;
+			if(inWheel == 0 && tick < currentTick)
+				tick = currentTick; //nothing to expire in the ticks we slept through
+
+			transferNewTimers();
+			while(tick <= currentTick){
+				expire(tick);
+				tick++;
+				transferNewTimers(); //ones the callbacks scheduled
+				removeCancelledTimers();
+			}
+
+			if(inWheel == 0)
+				LockSupport.park(this); //schedule wakes us up
+			else
+				LockSupport.parkNanos(this, startNanos + nextDueTick() * tickNanos - System.nanoTime());
+		}
+	}
+
+	/**
+	 * Schedules a callback to run once a delay has passed
+	 * @param task what to run on the wheel thread when the timer expires
+	 * @param delayMillis how long from now to run it in milliseconds
+	 * @return the timer, to cancel it with
+	 */
+	public Timer schedule(Runnable task, long delayMillis){
+		if(virtualClock != null){
+			final Timer timer = new Timer(task, 0);
+			pendingCount.incrementAndGet();
+			scheduledCount.incrementAndGet();
+			virtualClock.schedule(new Runnable(){
+				public void run(){
+					fire(timer);
+				}
+			}, delayMillis);
+			return timer;
+		}
+
+		long deadline = System.nanoTime() - startNanos + Math.max(0, delayMillis) * 1000000;
+		Timer timer = new Timer(task, (deadline + tickNanos - 1) / tickNanos); //round up so it never fires early
+
+		pendingCount.incrementAndGet();
+		scheduledCount.incrementAndGet();
+		newTimers.offer(timer);
+
+		Thread thread = wheelThread;
+		if(thread != null)
+			LockSupport.unpark(thread);
+		return timer;
+	}
+
+	/**
+	 * Gets the number of timers that have not expired or been cancelled
+	 * @return the pending count
+	 */
+	public int getPendingCount(){
+		return pendingCount.get();
+	}
+
+	/**
+	 * Gets the number of timers that have run their callback
+	 * @return the expired count
+	 */
+	public long getExpiredCount(){
+		return expiredCount.get();
+	}
+
+	/**
+	 * Describes the timer counters for display
+	 * @return the counters as a string
+	 */
+	public String toString(){
+		String counts = "Pending: " + pendingCount.get() + " | Scheduled: " + scheduledCount.get() + " | Expired: " + expiredCount.get() +
+				" | Cancelled: " + cancelledCount.get();
+		if(virtualClock != null)
+			return counts + " | Virtual time: " + virtualClock.currentTimeMillis() + " ms";
+		return counts + " | Tick: " + (tickNanos / 1000000) + " ms x " + buckets.length + " buckets";
+	}
+
+
+//----------------------------------------------------------------------------------------------------------//
+//---------------------------------------- Helper Methods --------------------------------------------------//
+//----------------------------------------------------------------------------------------------------------//
+
+	/**
+	 * Moves newly scheduled timers into the bucket for the tick they are due on
+	 */
+	private void transferNewTimers(){
+		Timer timer;
+		while((timer = newTimers.poll()) != null){
+			if(timer.state.get() != PENDING)
+				continue; //cancelled before it got here
+
+			long dueTick = Math.max(timer.deadlineTick, tick); //anything already late goes in this tick
+			timer.rounds = (dueTick - tick) >> Long.numberOfTrailingZeros(buckets.length);
+			timer.bucket = (int)dueTick & mask;
+
+			timer.next = buckets[timer.bucket];
+			if(timer.next != null)
+				timer.next.prev = timer;
+			buckets[timer.bucket] = timer;
+			inWheel++;
+		}
+	}
+
+	/**
+	 * Takes cancelled timers out of their buckets so they don't hold on to their callbacks
+	 */
+	private void removeCancelledTimers(){
+		Timer timer;
+		while((timer = cancelledTimers.poll()) != null){
+			if(timer.bucket >= 0)
+				unlink(timer);
+		}
+	}
+
+	/**
+	 * Finds the first tick from the next one to expire that has a timer due on it this time around the ring
+	 * @return that tick, or the tick a whole ring away if every timer is due on a later time around
+	 */
+	private long nextDueTick(){
+		for(int i = 0; i < buckets.length; i++){
+			for(Timer timer = buckets[(int)(tick + i) & mask]; timer != null; timer = timer.next){
+				if(timer.rounds == 0)
+					return tick + i;
+			}
+		}
+		return tick + buckets.length; //wake up to count the later ones down a round
+	}
+
+	/**
+	 * Runs every timer in a tick's bucket that is due this time around the ring
+	 * @param expiredTick the tick to expire
+	 */
+	private void expire(long expiredTick){
+		Timer timer = buckets[(int)expiredTick & mask];
+		while(timer != null){
+			Timer next = timer.next;
+			if(timer.rounds > 0)
+				timer.rounds--;
+			else{
+				unlink(timer);
+				fire(timer);
+			}
+			timer = next;
+		}
+	}
+
+	/**
+	 * Runs a timer's callback unless it was cancelled
+	 * @param timer the timer that is due
+	 */
+	private void fire(Timer timer){
+		if(timer.state.compareAndSet(PENDING, EXPIRED)){
+			pendingCount.decrementAndGet();
+			expiredCount.incrementAndGet();
+			try{
+				timer.task.run();
+			} catch(RuntimeException e){
+				System.err.println("Timer callback failed: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Takes a timer out of its bucket
+	 * @param timer the timer to take out
+	 */
+	private void unlink(Timer timer){
+		if(timer.prev != null)
+			timer.prev.next = timer.next;
+		else
+			buckets[timer.bucket] = timer.next;
+		if(timer.next != null)
+			timer.next.prev = timer.prev;
+
+		timer.prev = null;
+		timer.next = null;
+		timer.bucket = -1;
+		inWheel--;
+	}
+
+
+	/**
+	 * One scheduled callback
+	 */
+	public final class Timer {
+		private final Runnable task;
+		private final long deadlineTick; 	//the tick it is due on, counted from when the wheel was made
+		private final AtomicInteger state; 	//PENDING, CANCELLED or EXPIRED
+
+		private long rounds; 	//times around the ring left before it is due
+		private int bucket; 	//the bucket it is in, -1 when it isn't in one
+		private Timer prev;
+		private Timer next;
+
+		private Timer(Runnable theTask, long theDeadlineTick){
+			task = theTask;
+			deadlineTick = theDeadlineTick;
+			state = new AtomicInteger(PENDING);
+			bucket = -1;
+		}
+
+		/**
+		 * Stops the timer from running its callback
+		 * @return false if it already ran or was already cancelled
+		 */
+		public boolean cancel(){
+			if(!state.compareAndSet(PENDING, CANCELLED))
+				return false;
+
+			pendingCount.decrementAndGet();
+			cancelledCount.incrementAndGet();
+			if(virtualClock == null) //the virtual clock just skips it when it comes up
+				cancelledTimers.offer(this);
+			return true;
+		}
+
+		/**
+		 * Checks whether the timer has run its callback
+		 * @return true if it expired
+		 */
+		public boolean isExpired(){
+			return state.get() == EXPIRED;
+		}
+	}
+}
@@ -0,0 +1,351 @@
+package wifi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Command line tool that replays the received frames in FrameCapture files through a LinkLayer, so the
+ * receive path can be measured on real traffic. The frames come out of a stand-in medium that never
+ * touches the network, then go through the same ReceivePipeline, Packet decoding, Receiver sequence and
+ * reorder work, and LinkLayer.recv as live traffic does. Frames are replayed as fast as the layer takes
+ * them, or with the gaps they were recorded with. A capture usually starts part way through each sender's
+ * stream, so the layer expects each sender's first captured sequence number instead of 0.
+ * <p>
+ * Run with "java -cp .:../classFiles.jar wifi/TraceReplay [-recorded] [-mac address] files or directories"
+ * from the bin directory. The MAC address defaults to the one most of the captured data was sent to.
+ * @author Brandon Roberts
+ * @author Nate Olderman
+ */
+public class TraceReplay {
+	private static final int PCAP_MAGIC = 0xA1B2C3D4; 		//microsecond timestamps
+	private static final int PCAP_NANO_MAGIC = 0xA1B23C4D; 	//nanosecond timestamps, what FrameCapture writes
+	private static final int LINKTYPE_USER0 = 147;
+	private static final int FILE_HEADER_LENGTH = 24;
+	private static final int RECORD_HEADER_LENGTH = 16;
+	private static final int MIN_FRAME_LENGTH = 10; 	//header and CRC, anything shorter can't be decoded
+	private static final int MAX_BATCH = 32; 	//transmissions taken per recvBatch call
+
+	private byte[][] frames; 	//received frames in the order they were captured
+	private long[] times; 		//when each frame was captured, in nanoseconds
+	private int skipped; 		//sent frames and records too short to be a frame
+
+	/**
+	 * Replays the files given on the command line and prints the results
+	 * @param args the options, then the capture files or directories of them
+	 */
+	public static void main(String[] args){
+		boolean recordedSpeed = false;
+		int mac = -1;
+		ArrayList<File> files = new ArrayList<File>();
+
+		for(int i = 0; i < args.length; i++){
+			if(args[i].equals("-recorded"))
+				recordedSpeed = true;
+			else if(args[i].equals("-mac") && i + 1 < args.length)
+				mac = Integer.parseInt(args[++i]);
+			else
+				addCaptureFiles(new File(args[i]), files);
+		}
+		if(files.isEmpty()){
+			System.err.println("Usage: TraceReplay [-recorded] [-mac address] files or directories");
+			System.exit(1);
+		}
+
+		TraceReplay replay = new TraceReplay();
+		try{
+			for(File file : files)
+				replay.load(file);
+		} catch(IOException e){
+			System.err.println("Couldn't read capture: " + e.getMessage());
+			System.exit(1);
+		}
+
+		if(mac == -1)
+			mac = replay.guessMac();
+		replay.run((short)mac, recordedSpeed);
+		System.exit(0); //the link layer's threads never stop on their own
+	}
+
+	/**
+	 * Makes a new TraceReplay with no frames loaded
+	 */
+	public TraceReplay(){
+		frames = new byte[0][];
+		times = new long[0];
+	}
+
+	/**
+	 * Adds the received frames in a capture file to the end of the ones already loaded
+	 * @param file the capture file
+	 * @throws IOException if it can't be read or isn't a pcap file
+	 */
+	public void load(File file) throws IOException{
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try{
+			MappedByteBuffer buffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+			buffer.order(ByteOrder.LITTLE_ENDIAN);
+			if(buffer.remaining() < FILE_HEADER_LENGTH)
+				throw new IOException(file + " is too short to be a capture");
+
+			int magic = buffer.getInt();
+			if(magic != PCAP_MAGIC && magic != PCAP_NANO_MAGIC){ //written big endian
+				buffer.order(ByteOrder.BIG_ENDIAN);
+				magic = Integer.reverseBytes(magic);
+				if(magic != PCAP_MAGIC && magic != PCAP_NANO_MAGIC)
+					throw new IOException(file + " is not a pcap file");
+			}
+			long fractionNanos = (magic == PCAP_NANO_MAGIC) ? 1 : 1000;
+
+			buffer.position(20);
+			if(buffer.getInt() != LINKTYPE_USER0)
+				System.err.println("Warning: " + file + " wasn't written by FrameCapture, reading it as if it was");
+
+			ArrayList<byte[]> newFrames = new ArrayList<byte[]>();
+			ArrayList<Long> newTimes = new ArrayList<Long>();
+			while(buffer.remaining() >= RECORD_HEADER_LENGTH){
+				long seconds = buffer.getInt() & 0xFFFFFFFFL;
+				long fraction = buffer.getInt() & 0xFFFFFFFFL;
+				int length = buffer.getInt();
+				buffer.getInt(); //original length
+				if(length < 0 || length > buffer.remaining()) //cut off mid record
+					break;
+
+				int direction = (length > 0) ? buffer.get() : -1;
+				if(direction != FrameCapture.RECEIVED || length - 1 < MIN_FRAME_LENGTH){
+					buffer.position(buffer.position() + Math.max(0, length - 1));
+					skipped++;
+					continue;
+				}
+
+				byte[] frame = new byte[length - 1];
+				buffer.get(frame);
+				newFrames.add(frame);
+				newTimes.add(seconds * 1000000000L + fraction * fractionNanos);
+			}
+
+			int start = frames.length;
+			frames = Arrays.copyOf(frames, start + newFrames.size());
+			times = Arrays.copyOf(times, start + newFrames.size());
+			for(int i = 0; i < newFrames.size(); i++){
+				frames[start + i] = newFrames.get(i);
+				times[start + i] = newTimes.get(i);
+			}
+		} finally{
+			in.close();
+		}
+	}
+
+	/**
+	 * Gets the MAC address most of the loaded unicast data frames were sent to, which is who captured them
+	 * @return the MAC address, or 0 if there is no unicast data
+	 */
+	public int guessMac(){
+		HashMap<Short, Integer> counts = new HashMap<Short, Integer>();
+		short best = 0;
+		int bestCount = 0;
+		for(byte[] frame : frames){
+			Packet packet = new Packet(frame);
+			if(packet.getFrameType() != 0 || packet.getDestAddr() == -1)
+				continue;
+
+			Integer count = counts.get(packet.getDestAddr());
+			count = (count == null) ? 1 : count + 1;
+			counts.put(packet.getDestAddr(), count);
+			if(count > bestCount){
+				best = packet.getDestAddr();
+				bestCount = count;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Replays every loaded frame through a new LinkLayer and prints how fast each stage went
+	 * @param mac the MAC address of the layer, which the frames were captured by
+	 * @param recordedSpeed true to keep the gaps between frames they were recorded with, false to go as fast as possible
+	 */
+	public void run(short mac, boolean recordedSpeed){
+		System.out.println("Replaying " + frames.length + " received frames as " + mac + " at " +
+				(recordedSpeed ? "recorded" : "maximum") + " speed (" + skipped + " other records skipped)");
+		if(frames.length == 0)
+			return;
+
+		ReplayMedium medium = new ReplayMedium(frames, times, recordedSpeed);
+		PrintWriter output = new PrintWriter(new OutputStream(){ //the layer's text output isn't what is being measured
+			public void write(int b){}
+			public void write(byte[] bytes, int offset, int length){}
+		});
+		LinkLayer layer = new LinkLayer(mac, output, medium);
+		layer.getReceiveBuffer().setPolicy(ReceiveBuffer.BLOCK); //slow the replay down instead of dropping when recv falls behind
+
+		int senders = 0;
+		for(byte[] frame : frames){ //before the medium begins, so nothing has been processed yet
+			if(layer.getReceiver().expectFrom(new Packet(frame)))
+				senders++;
+		}
+		System.out.println("Expecting " + senders + " senders' streams from their first captured sequence numbers");
+
+		Transmission[] batch = new Transmission[MAX_BATCH];
+		for(int i = 0; i < MAX_BATCH; i++)
+			batch[i] = new Transmission((short)0, (short)0, null);
+
+		StageMetrics dispatch = layer.getReceivePipeline().getDispatchMetrics();
+		long delivered = 0;
+		long deliveredBytes = 0;
+		long lastDelivery = System.nanoTime();
+
+		medium.begin();
+		while(!medium.isFinished() || dispatch.getCount() < frames.length || layer.available() > 0){
+			int count = layer.recvBatch(batch, MAX_BATCH, 1);
+			for(int i = 0; i < count; i++)
+				deliveredBytes += batch[i].getBuf().length;
+			if(count > 0){
+				delivered += count;
+				lastDelivery = System.nanoTime();
+			}
+		}
+		long end = Math.max(lastDelivery, System.nanoTime() - 1000000L); //the last wait for more is not replay time
+		long elapsed = Math.max(1, end - medium.getStartNanos());
+
+		System.out.println(String.format("%d frames in %.1f ms: %.0f frames/s, %d delivered to recv (%d bytes)",
+				frames.length, elapsed / 1e6, frames.length * 1e9 / elapsed, delivered, deliveredBytes));
+		System.out.println("Stages: " + layer.getReceivePipeline());
+		System.out.println("Receive buffer: " + layer.getReceiveBuffer());
+		System.out.println("Status counts: " + layer.getStatusLog());
+	}
+
+//----------------------------------------------------------------------------------------------------------//
+//---------------------------------------- Helper Methods --------------------------------------------------//
+//----------------------------------------------------------------------------------------------------------//
+
+	/**
+	 * Adds a capture file, or every .pcap file in a directory oldest first, to the files to replay
+	 * @param file the file or directory
+	 * @param files the files to replay
+	 */
+	private static void addCaptureFiles(File file, ArrayList<File> files){
+		File[] inside = file.listFiles();
+		if(inside == null){
+			files.add(file);
+			return;
+		}
+
+		Arrays.sort(inside, new Comparator<File>(){
+			public int compare(File a, File b){
+				return Long.compare(a.lastModified(), b.lastModified());
+			}
+		});
+		for(File capture : inside){
+			if(capture.getName().endsWith(".pcap"))
+				files.add(capture);
+		}
+	}
+
+	/**
+	 * Medium that hands out recorded frames and nothing else. It has no network connection, so
+	 * anything transmitted, such as the ACKs for the replayed frames, is thrown away.
+	 */
+	private static class ReplayMedium implements Medium {
+		private byte[][] frames;
+		private long[] times;
+		private boolean recordedSpeed;
+		private int next; 					//only used by the receiving thread
+		private volatile boolean finished; 	//set once the receiver asks for more after the last frame
+		private volatile long clock; 		//the recorded time of the latest frame in milliseconds
+		private long startNanos;
+		private CountDownLatch started;
+
+		/**
+		 * Makes a medium that receives the given frames once
+		 * @param theFrames the frames to receive, in order
+		 * @param theTimes when each frame was recorded in nanoseconds
+		 * @param isRecordedSpeed true to hand frames out with the gaps they were recorded with
+		 */
+		public ReplayMedium(byte[][] theFrames, long[] theTimes, boolean isRecordedSpeed){
+			frames = theFrames;
+			times = theTimes;
+			recordedSpeed = isRecordedSpeed;
+			clock = theTimes[0] / 1000000L;
+			started = new CountDownLatch(1);
+		}
+
+		/**
+		 * Lets the receiver have the first frame
+		 */
+		public void begin(){
+			startNanos = System.nanoTime();
+			started.countDown();
+		}
+
+		/**
+		 * Gets when the replay began
+		 * @return System.nanoTime() at the start
+		 */
+		public long getStartNanos(){
+			return startNanos;
+		}
+
+		/**
+		 * Checks whether every frame has been handed out
+		 * @return true once the receiver has come back after the last frame
+		 */
+		public boolean isFinished(){
+			return finished;
+		}
+
+		public byte[] receive(){
+			try{
+				started.await();
+			} catch(InterruptedException e){
+				System.err.println("Replay interrupted!");
+			}
+
+			if(next == frames.length){
+				finished = true;
+				while(true) //nothing left to receive
+					LockSupport.park(this);
+			}
+
+			if(recordedSpeed){
+				long due = startNanos + (times[next] - times[0]);
+				long wait;
+				while((wait = due - System.nanoTime()) > 0)
+					LockSupport.parkNanos(this, wait);
+			}
+			clock = times[next] / 1000000L;
+			return frames[next++];
+		}
+
+		public int transmit(byte[] frame){
+			return frame.length;
+		}
+
+		public boolean inUse(){
+			return false;
+		}
+
+		public boolean dataWaiting(){
+			return next < frames.length;
+		}
+
+		public long clock(){
+			return clock;
+		}
+
+		public long getIdleTime(){
+			return 0;
+		}
+	}
+}
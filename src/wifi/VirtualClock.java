@@ -0,0 +1,434 @@
+package wifi;
+
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Simulated time for running link layers on a {@link SharedMedium} much faster than real time, and
+ * the same way every run. Every thread that waits on MAC timing (each station's Sender, Receiver and
+ * AckResponder, and whoever drives the simulation) is a participant, and only one participant runs at
+ * a time. A participant runs until it sleeps or waits for a condition, then the turn goes to the next
+ * one that can run. When none can, the clock jumps straight to the earliest pending deadline, so waits
+ * like the 3.6 second ACK timeout and the 6 second beacon interval take no real time at all.
+ * <p>
+ * Since the order everything happens in only depends on the order participants were made in and on
+ * seeded randoms, a run with the same seeds always gives the same results. Threads that aren't
+ * participants may still schedule timers and change conditions, but not deterministically, so the
+ * layer above should be driven from inside {@link #run(long)}.
+ * @author Brandon Roberts
+ * @author Nate Olderman
+ */
+public class VirtualClock {
+	private static final int RUNNING = 0; 	//has the turn
+	private static final int READY = 1; 	//can run as soon as it is given the turn
+	private static final int SLEEPING = 2; 	//waiting for a deadline
+	private static final int WAITING = 3; 	//waiting for a condition
+	private static final int DONE = 4; 		//finished, never runs again
+
+	private static final Runnable NOTHING = new Runnable(){ 	//an event that only moves time forward
+		public void run(){
+		}
+	};
+
+	private volatile long now; 		//nanoseconds since the clock was made, only moved forward by whoever has the turn
+	private PriorityQueue<Event> events; 	//timers and sleepers by deadline
+	private long eventCount; 				//events ever scheduled, which breaks ties between equal deadlines
+
+	private CopyOnWriteArrayList<Participant> participants; 	//in the order they were made
+	private Participant running; 								//the participant with the turn, null when nobody has it
+	private ThreadLocal<Participant> current;
+	private Random seeds; 		//where every station's random comes from
+	private Random jitter; 		//how late each sleeper wakes up
+	private long jitterNanos; 	//the latest a sleeper can wake up, 0 to wake right on time
+
+	private long handoffs; 		//times the turn went from one participant to another
+	private long eventsRun;
+
+	/**
+	 * Condition a participant can wait for
+	 */
+	public interface Condition {
+		/**
+		 * Checks the condition, which is only ever done by the participant with the turn
+		 * @return true once the waiting participant can go on
+		 */
+		boolean isMet();
+	}
+
+	/**
+	 * Makes a new VirtualClock at time 0 that doesn't move until something runs on it
+	 * @param seed the seed for the randoms given to the stations
+	 */
+	public VirtualClock(long seed){
+		events = new PriorityQueue<Event>();
+		participants = new CopyOnWriteArrayList<Participant>();
+		current = new ThreadLocal<Participant>();
+		seeds = new Random(seed);
+		jitter = new Random(seeds.nextLong());
+	}
+
+	/**
+	 * Makes a thread that runs the task as a participant. It doesn't do anything until it is given the
+	 * turn, even once it is started, and participants made first are given it first.
+	 * @param task what to run
+	 * @param name the thread's name
+	 * @return the thread, which still has to be started
+	 */
+	public Thread newThread(final Runnable task, String name){
+		final Participant participant = register(name);
+		Thread thread = new Thread(new Runnable(){
+			public void run(){
+				current.set(participant);
+				waitForTurn(participant);
+				try{
+					task.run();
+				} finally{
+					finish(participant);
+				}
+			}
+		}, name);
+		thread.setDaemon(true); //parked for good once the simulation is over
+		participant.thread = thread;
+		return thread;
+	}
+
+	/**
+	 * Runs the simulation from the calling thread for an amount of virtual time. The caller is a participant
+	 * until it returns, so it can send, receive and sleep on the clock while it has the turn.
+	 * @param millis how much virtual time to run for in milliseconds
+	 */
+	public void run(long millis){
+		Participant participant = register(Thread.currentThread().getName());
+		participant.thread = Thread.currentThread();
+		current.set(participant);
+		synchronized(this){
+			if(running == null){ //nobody is running, so the simulation starts with us
+				participant.state = RUNNING;
+				participant.hasTurn = true;
+				running = participant;
+			}
+		}
+
+		try{
+			waitForTurn(participant);
+			sleepUntil(now + Math.max(0, millis) * 1000000L, 0); //ends right on time
+		} finally{
+			current.remove();
+			stop(participant);
+		}
+	}
+
+	/**
+	 * Makes every sleeper wake up a random amount late, up to the given time, the way real threads do. Without it
+	 * stations that start waiting together finish together every time, so they keep colliding with each other.
+	 * @param nanos the most a sleeper can wake up late by in nanoseconds, 0 to wake right on time
+	 */
+	public synchronized void setJitterNanos(long nanos){
+		jitterNanos = Math.max(0, nanos);
+	}
+
+	/**
+	 * Waits for an amount of virtual time
+	 * @param millis how long to wait in milliseconds
+	 */
+	public void sleep(long millis){
+		sleepUntil(now + Math.max(0, millis) * 1000000L);
+	}
+
+	/**
+	 * Waits until a point in virtual time
+	 * @param deadline the time to wait until, from nanoTime()
+	 */
+	public void sleepUntil(long deadline){
+		sleepUntil(deadline, nextJitter());
+	}
+
+	/**
+	 * Waits until a condition is met, which is checked every time the turn changes hands
+	 * @param condition the condition to wait for
+	 */
+	public void await(Condition condition){
+		Participant participant = self();
+		if(condition.isMet())
+			return;
+
+		participant.condition = condition;
+		participant.state = WAITING;
+		yieldTurn(participant);
+		participant.condition = null;
+	}
+
+	/**
+	 * Waits until a condition is met or an amount of virtual time has passed, whichever comes first
+	 * @param condition the condition to wait for
+	 * @param timeoutMillis the longest to wait in milliseconds
+	 * @return true if the condition was met, false if the time ran out first
+	 */
+	public boolean await(final Condition condition, long timeoutMillis){
+		self(); //only participants can wait, and before the deadline is scheduled
+		if(condition.isMet())
+			return true;
+
+		final long deadline = now + Math.max(0, timeoutMillis) * 1000000L;
+		at(deadline, NOTHING); //something has to be due at the deadline for time to get there
+		await(new Condition(){
+			public boolean isMet(){
+				return condition.isMet() || now >= deadline;
+			}
+		});
+		return condition.isMet();
+	}
+
+	/**
+	 * Runs a task on whichever participant has the turn once a delay has passed
+	 * @param task what to run, which should only flag or wake whoever does the real work
+	 * @param delayMillis how long from now to run it in milliseconds
+	 */
+	public void schedule(Runnable task, long delayMillis){
+		at(now + Math.max(0, delayMillis) * 1000000L, task);
+	}
+
+	/**
+	 * Gets the virtual time, which stands in for System.nanoTime()
+	 * @return nanoseconds since the clock was made
+	 */
+	public long nanoTime(){
+		return now;
+	}
+
+	/**
+	 * Gets the virtual time in milliseconds
+	 * @return milliseconds since the clock was made
+	 */
+	public long currentTimeMillis(){
+		return now / 1000000L;
+	}
+
+	/**
+	 * Makes a random for a station, seeded from the clock's seed in the order they are asked for
+	 * @return the random
+	 */
+	public synchronized Random newRandom(){
+		return new Random(seeds.nextLong());
+	}
+
+	/**
+	 * Describes the clock for display
+	 * @return the time and counters as a string
+	 */
+	public synchronized String toString(){
+		return "Time: " + (now / 1000000L) + " ms | Participants: " + participants.size() + " | Pending: " + events.size() +
+				" | Events run: " + eventsRun + " | Handoffs: " + handoffs;
+	}
+
+
+//----------------------------------------------------------------------------------------------------------//
+//---------------------------------------- Helper Methods --------------------------------------------------//
+//----------------------------------------------------------------------------------------------------------//
+
+	/**
+	 * Adds a participant that is ready to run
+	 * @param name what to call it
+	 * @return the participant
+	 */
+	private synchronized Participant register(String name){
+		Participant participant = new Participant(name);
+		participants.add(participant);
+		return participant;
+	}
+
+	/**
+	 * Adds an event to the queue
+	 * @param deadline when to run it, from nanoTime()
+	 * @param task what to run
+	 */
+	private synchronized void at(long deadline, Runnable task){
+		events.add(new Event(Math.max(deadline, now), eventCount++, task));
+	}
+
+	/**
+	 * Waits until a point in virtual time, plus some jitter
+	 * @param deadline the time to wait until, from nanoTime()
+	 * @param late how long after the deadline to wake up in nanoseconds
+	 */
+	private void sleepUntil(long deadline, long late){
+		final Participant participant = self();
+		if(deadline <= now)
+			return;
+
+		participant.state = SLEEPING;
+		at(deadline + late, new Runnable(){
+			public void run(){
+				participant.state = READY;
+			}
+		});
+		yieldTurn(participant);
+	}
+
+	/**
+	 * Draws how late the next sleeper wakes up
+	 * @return the delay in nanoseconds
+	 */
+	private synchronized long nextJitter(){
+		if(jitterNanos == 0)
+			return 0;
+		return (long)(jitter.nextDouble() * jitterNanos);
+	}
+
+	/**
+	 * Gets the participant for the calling thread
+	 * @return the participant
+	 */
+	private Participant self(){
+		Participant participant = current.get();
+		if(participant == null)
+			throw new IllegalStateException(Thread.currentThread().getName() + " can't wait on virtual time, it isn't a participant");
+		return participant;
+	}
+
+	/**
+	 * Blocks the calling thread until its participant is given the turn
+	 * @param participant the calling thread's participant
+	 */
+	private void waitForTurn(Participant participant){
+		while(!participant.hasTurn)
+			LockSupport.park(this);
+	}
+
+	/**
+	 * Gives up the turn after the participant has started to sleep or wait, and blocks until it gets it back
+	 * @param participant the participant with the turn
+	 */
+	private void yieldTurn(Participant participant){
+		Participant next = pickNext(participants.indexOf(participant) + 1);
+		if(next == participant){ //what it was waiting for already came
+			participant.state = RUNNING;
+			return;
+		}
+
+		participant.hasTurn = false;
+		handTo(next);
+		waitForTurn(participant);
+	}
+
+	/**
+	 * Takes a participant out for good and passes the turn on
+	 * @param participant the participant with the turn
+	 */
+	private void finish(Participant participant){
+		participant.state = DONE;
+		participant.hasTurn = false;
+		handTo(pickNext(participants.indexOf(participant) + 1));
+	}
+
+	/**
+	 * Takes the participant that was running the simulation out, and leaves nobody with the turn so
+	 * everything stays where it is until run is called again
+	 * @param participant the participant with the turn
+	 */
+	private synchronized void stop(Participant participant){
+		participant.state = DONE;
+		participant.hasTurn = false;
+		participants.remove(participant);
+		running = null;
+	}
+
+	/**
+	 * Finds the next participant that can run, running events and moving time forward until there is one
+	 * @param first the index to start looking from, so participants take turns
+	 * @return the participant to give the turn to, or null if nothing will ever be able to run
+	 */
+	private Participant pickNext(int first){
+		while(true){
+			int count = participants.size();
+			for(int i = 0; i < count; i++){
+				Participant participant = participants.get((first + i) % count);
+				if(participant.state == READY || (participant.state == WAITING && participant.condition.isMet()))
+					return participant;
+			}
+
+			Event event;
+			synchronized(this){
+				event = events.poll();
+				if(event == null)
+					return null;
+				if(event.deadline > now)
+					now = event.deadline;
+				eventsRun++;
+			}
+			try{
+				event.task.run(); //outside the lock so the task can take its own locks
+			} catch(RuntimeException e){
+				System.err.println("Virtual timer callback failed: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Gives the turn to a participant, or leaves nobody with it
+	 * @param next the participant to give it to, or null
+	 */
+	private synchronized void handTo(Participant next){
+		if(next == null){
+			for(Participant participant : participants){ //someone may have joined since pickNext looked
+				if(participant.state == READY){
+					next = participant;
+					break;
+				}
+			}
+		}
+
+		running = next;
+		if(next == null)
+			return; //idle until run is called again
+
+		handoffs++;
+		next.state = RUNNING;
+		next.hasTurn = true;
+		LockSupport.unpark(next.thread);
+	}
+
+
+	/**
+	 * One thread that runs on virtual time
+	 */
+	private static class Participant {
+		private final String name;
+		private volatile Thread thread;
+		private volatile int state;
+		private volatile boolean hasTurn;
+		private volatile Condition condition; 	//what it is waiting for while WAITING
+
+		private Participant(String theName){
+			name = theName;
+			state = READY;
+		}
+
+		public String toString(){
+			return name;
+		}
+	}
+
+	/**
+	 * A task due at a point in virtual time
+	 */
+	private static class Event implements Comparable<Event> {
+		private final long deadline;
+		private final long order; 	//when it was scheduled, so equal deadlines run first come first served
+		private final Runnable task;
+
+		private Event(long theDeadline, long theOrder, Runnable theTask){
+			deadline = theDeadline;
+			order = theOrder;
+			task = theTask;
+		}
+
+		public int compareTo(Event other){
+			if(deadline != other.deadline)
+				return (deadline < other.deadline) ? -1 : 1;
+			return (order < other.order) ? -1 : (order == other.order ? 0 : 1);
+		}
+	}
+}
@@ -23,6 +23,8 @@ import javax.swing.JPanel;
 import javax.swing.JScrollPane;
 import javax.swing.JTextArea;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
 
 
 
@@ -69,8 +71,12 @@ public class WiFiClient implements ActionListener, Runnable {
    protected JTextArea inputBox;       // The message text display itself
    // Text is collected in a StringBuilder as well as the JTextArea.  This allows us to
    // continue buffering text in the StringBuilder even when the window is paused.
+   // Both are trimmed to the scrollback limit, oldest lines first.
    protected JTextArea display;        // The output text display
    protected StringBuffer outputText = new StringBuffer(); // Holds display text
+   protected StringBuilder pendingText = new StringBuilder(); // Text added since the last frame, guarded by itself
+   protected int scrollbackLimit = DEFAULT_SCROLLBACK;    // Most characters kept in outputText and the display
+   protected Timer renderTimer;        // Moves pendingText into the display once per frame
    protected JFrame frame;             // The frame that holds the display and key panels
    protected JButton[] ctrlButtons;    // Has to be field so listener can access them
    protected JButton[] sendButtons;    // Has to be field so listener can access them
@@ -89,6 +95,9 @@ public class WiFiClient implements ActionListener, Runnable {
    protected static final int PAUSE = 2;
    protected static final int SAVE = 3;
 
+   protected static final int FRAME_INTERVAL = 33;          // Milliseconds between display updates (about 30 per second)
+   protected static final int DEFAULT_SCROLLBACK = 1 << 20; // Characters of output kept by default
+
 
 
    /**
@@ -184,6 +193,14 @@ public class WiFiClient implements ActionListener, Runnable {
       frame.add(controls, BorderLayout.SOUTH);
       frame.setVisible(true);
 
+      // Text from every thread is collected and handed to the display in one append per frame
+      renderTimer = new Timer(FRAME_INTERVAL, new ActionListener() {
+         public void actionPerformed(ActionEvent e) {
+            renderPendingText();
+         }
+      });
+      renderTimer.start();
+
       // Now that frame's set up, go ahead and initialize link layer
       theLinkLayer.initializeLinkLayer(MACaddr);
    }
@@ -280,15 +297,48 @@ public class WiFiClient implements ActionListener, Runnable {
 
    /**
     * Call this to append text to the scrolling output pane.  No newlines are added,
-    * so be sure to include a "\n" where desired.  Text is collected in a StringBuffer
-    * (outputText) as well as the JTextArea (display).  This allows us to continue 
-    * buffering text even when the window output is paused.
+    * so be sure to include a "\n" where desired.  It's safe to call from any thread:
+    * the text is queued and the event-dispatching thread moves everything queued
+    * into the display once per frame.
     * 
     * @param msg  Text to add to the scrolling pane
     */
-   public synchronized void addText(String msg) {
-      
-      outputText.append(msg);   
+   public void addText(String msg) {
+      synchronized (pendingText) {
+         pendingText.append(msg);
+         // If the display can't keep up, don't queue more than it would keep anyway
+         if (pendingText.length() > scrollbackLimit)
+            pendingText.delete(0, trimPoint(pendingText, pendingText.length() - scrollbackLimit));
+      }
+   }
+
+   /**
+    * Sets how many characters of output are kept.  Older lines are dropped from
+    * outputText and the display once there's more than this.
+    * @param limit  The most characters to keep
+    */
+   public void setScrollbackLimit(int limit) {
+      scrollbackLimit = Math.max(1, limit);
+   }
+
+   /**
+    * Moves everything queued by addText() into outputText, and into the display
+    * with a single append unless we're paused, then trims both to the scrollback
+    * limit.  Runs on the event-dispatching thread once per frame.
+    */
+   private void renderPendingText() {
+      String msg;
+      synchronized (pendingText) {
+         if (pendingText.length() == 0)
+            return;
+         msg = pendingText.toString();
+         pendingText.setLength(0);
+      }
+
+      outputText.append(msg);
+      if (outputText.length() > scrollbackLimit)
+         outputText.delete(0, trimPoint(outputText, outputText.length() - scrollbackLimit));
+
       // Setting the scroll bar's position sometimes causes a mysterious exception
       // to be thrown.  If it happens, pause while the output collects in outputText.
       // When the user resumes, all of the outputText will be dumped into the display
@@ -296,14 +346,34 @@ public class WiFiClient implements ActionListener, Runnable {
       try {
          if (!paused) { 
             display.append(msg); 
+            int excess = display.getDocument().getLength() - scrollbackLimit;
+            if (excess > 0)
+               display.getDocument().remove(0, trimPoint(display.getText(0, Math.min(display.getDocument().getLength(), excess + 256)), excess));
             //textPane.getVerticalScrollBar().setValue(Integer.MAX_VALUE);
          }
+      } catch (BadLocationException e) {
+         System.out.println("Couldn't trim the display -- " + e.getMessage());
       } catch (RuntimeException e) {
          System.out.println("Exception in addText() -- pausing output");
          paused = true;
          ctrlButtons[PAUSE].setText("Resume");
       }
-   }   
+   }
+
+   /**
+    * Finds where to cut the front off some text so at least the given number of
+    * characters go and the cut lands just after a newline, if there is one close by.
+    * @param text  The text to trim
+    * @param excess  The fewest characters to remove
+    * @return The number of characters to remove from the front
+    */
+   private static int trimPoint(CharSequence text, int excess) {
+      int limit = Math.min(text.length(), excess + 256);   // Don't throw away much more than needed to find a newline
+      for (int i = excess; i < limit; i++)
+         if (text.charAt(i - 1) == '\n')
+            return i;
+      return Math.min(excess, text.length());
+   }
 
    /**
     * Prompts user to select an output file, then writes all text from the
@@ -354,22 +424,39 @@ public class WiFiClient implements ActionListener, Runnable {
        */
       public void run() {
          for(;;) {
-            try {
-               Thread.sleep(20);
-            } catch (InterruptedException e) {
-               // Do nothing if awakened early
-            }   
-            byte[] bytes = theLinkLayer.watchForIncomingData();
-            if (bytes != null && bytes.length >= 2) {
-               int tmp = ((int)bytes[0]) & 0xFF;
-               tmp = (tmp << 8) | (((int)bytes[1]) & 0xFF);
-               short srcAddr = (short)tmp;
-               String payload = new String(bytes, 2, bytes.length-2);
-               display.addText("From "+srcAddr+": \""+payload+"\"\n");
+            // Both calls block in the link layer until something arrives.
+            // The Java link layer can hand up a whole burst per call
+            if (theLinkLayer instanceof JavaGUIAdapter) {
+               byte[][] batch = ((JavaGUIAdapter)theLinkLayer).watchForIncomingBatch();
+               StringBuilder text = new StringBuilder();
+               for (int i = 0; i < batch.length; i++)
+                  text.append(describe(batch[i]));
+               if (text.length() > 0)
+                  display.addText(text.toString());
+            }
+            else {
+               String text = describe(theLinkLayer.watchForIncomingData());
+               if (text.length() > 0)
+                  display.addText(text);
             }
          }
       }
 
+      /**
+       * Formats an incoming transmission (source address followed by data) for display.
+       * @param bytes  The bytes returned by the link layer
+       * @return The text to display, or an empty string if there's nothing to show
+       */
+      private String describe(byte[] bytes) {
+         if (bytes == null || bytes.length < 2)
+            return "";
+         int tmp = ((int)bytes[0]) & 0xFF;
+         tmp = (tmp << 8) | (((int)bytes[1]) & 0xFF);
+         short srcAddr = (short)tmp;
+         String payload = new String(bytes, 2, bytes.length-2);
+         return "From "+srcAddr+": \""+payload+"\"\n";
+      }
+
    }
 
 
@@ -377,7 +464,8 @@ public class WiFiClient implements ActionListener, Runnable {
    /**
     * The main method selects a MAC address, creates a WiFiClient GUI and associates
     * it with the link layer implementation, then waits in an infinite loop watching
-    * for stream output from the link layer and routing into the GUI display.
+    * for stream output from the link layer and routing into the GUI display.  The Java
+    * link layer wakes the loop as soon as it writes; other layers are polled.
     */
 
    public static void main(String[] args) {
@@ -417,13 +505,21 @@ public class WiFiClient implements ActionListener, Runnable {
       // Run forever, watching for input from the link layer and adding it to the GUI's
       // text display window.
       
+      boolean canBlock = linkLayer instanceof JavaGUIAdapter
+                         && ((JavaGUIAdapter)linkLayer).getOutputRing() != null;
       for(;;) {
-         try {
-            Thread.sleep(100);
-         } catch (InterruptedException e) {
-            // Do nothing if awakened early
-         }   
-         byte[] bytes = linkLayer.pollForStreamOutput();
+         byte[] bytes;
+         if (canBlock) {
+            bytes = ((JavaGUIAdapter)linkLayer).watchForStreamOutput();
+         }
+         else {
+            try {
+               Thread.sleep(100);
+            } catch (InterruptedException e) {
+               // Do nothing if awakened early
+            }   
+            bytes = linkLayer.pollForStreamOutput();
+         }
          if (bytes != null) {
             String output = new String(bytes, 0, bytes.length);
             display.addText(output);